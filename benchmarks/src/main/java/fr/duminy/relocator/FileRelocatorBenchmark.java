@@ -0,0 +1,63 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.ast.CompilationUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.javaparser.JavaParser.parse;
+import static fr.duminy.relocator.SourceTreeGenerator.RELOCATED_PACKAGE;
+import static fr.duminy.relocator.SourceTreeGenerator.TARGET_PACKAGE;
+
+@State(Scope.Thread)
+// each iteration times a batch of relocations, on clones prepared outside of the measurement
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = FileRelocatorBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = FileRelocatorBenchmark.BATCH_SIZE)
+@Fork(1)
+public class FileRelocatorBenchmark {
+    static final int BATCH_SIZE = 100;
+
+    @Param({ "10", "100", "1000" })
+    private int membersPerFile;
+
+    @Param({ "0.1", "0.5" })
+    private double referenceDensity;
+
+    private final FileRelocator fileRelocator = new FileRelocator();
+    private CompilationUnit parsedCompilationUnit;
+    private final CompilationUnit[] compilationUnits = new CompilationUnit[BATCH_SIZE];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        fileRelocator.addRelocation(new PackageRelocation(RELOCATED_PACKAGE, TARGET_PACKAGE));
+        SourceTreeGenerator generator = new SourceTreeGenerator(42, 1, membersPerFile, 3, referenceDensity);
+        parsedCompilationUnit = parse(generator.generateSource(0));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            compilationUnits[i] = parsedCompilationUnit.clone();
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public boolean relocate() {
+        return fileRelocator.relocate(compilationUnits[next++]);
+    }
+}
@@ -0,0 +1,116 @@
+package fr.duminy.relocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import static fr.duminy.relocator.SourceTreeGenerator.RELOCATED_PACKAGE;
+import static fr.duminy.relocator.SourceTreeGenerator.TARGET_PACKAGE;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.Files.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RelocatorBenchmark {
+    @Param({ "1000" })
+    private int fileCount;
+
+    @Param({ "20" })
+    private int membersPerFile;
+
+    @Param({ "0.02", "0.2" })
+    private double referenceDensity;
+
+    @Param({ "1", "4" })
+    private int workerCount;
+
+    @Param({ "PRETTY_PRINT", "PRESERVE_FORMATTING" })
+    private OutputMode outputMode;
+
+    private Path generatedDirectory;
+    private Path sourceDirectory;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        generatedDirectory = createTempDirectory("relocator-benchmark");
+        new SourceTreeGenerator(42, fileCount, membersPerFile, 3, referenceDensity).generate(generatedDirectory);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        sourceDirectory = createTempDirectory("relocator-benchmark");
+        copyTree(generatedDirectory, sourceDirectory);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        deleteTree(sourceDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        deleteTree(generatedDirectory);
+    }
+
+    @Benchmark
+    public void relocate() throws IOException {
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation(RELOCATED_PACKAGE, TARGET_PACKAGE));
+        relocator.setWorkerCount(workerCount);
+        relocator.setOutputMode(outputMode);
+        relocator.relocate();
+    }
+
+    private static void copyTree(Path source, Path target) throws IOException {
+        walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                createDirectories(target.resolve(source.relativize(dir)));
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                copy(file, target.resolve(source.relativize(file)));
+                return CONTINUE;
+            }
+        });
+    }
+
+    private static void deleteTree(Path directory) throws IOException {
+        walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                delete(file);
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                delete(dir);
+                return CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,64 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.ast.CompilationUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.javaparser.JavaParser.parse;
+import static fr.duminy.relocator.SourceTreeGenerator.BASE_PACKAGE;
+import static fr.duminy.relocator.SourceTreeGenerator.RELOCATED_PACKAGE;
+import static fr.duminy.relocator.SourceTreeGenerator.TARGET_PACKAGE;
+
+@State(Scope.Thread)
+// each iteration times a batch of relocations, on clones prepared outside of the measurement
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = RuleScalingBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = RuleScalingBenchmark.BATCH_SIZE)
+@Fork(1)
+public class RuleScalingBenchmark {
+    static final int BATCH_SIZE = 100;
+
+    @Param({ "1", "10", "100", "1000", "10000" })
+    private int ruleCount;
+
+    private final FileRelocator fileRelocator = new FileRelocator();
+    private CompilationUnit parsedCompilationUnit;
+    private final CompilationUnit[] compilationUnits = new CompilationUnit[BATCH_SIZE];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        for (int rule = 1; rule < ruleCount; rule++) {
+            fileRelocator.addRelocation(new PackageRelocation(BASE_PACKAGE + ".unused" + rule, TARGET_PACKAGE));
+        }
+        fileRelocator.addRelocation(new PackageRelocation(RELOCATED_PACKAGE, TARGET_PACKAGE));
+        SourceTreeGenerator generator = new SourceTreeGenerator(42, 1, 100, 3, 0.5);
+        parsedCompilationUnit = parse(generator.generateSource(0));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            compilationUnits[i] = parsedCompilationUnit.clone();
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public boolean relocate() {
+        return fileRelocator.relocate(compilationUnits[next++]);
+    }
+}
@@ -0,0 +1,80 @@
+package fr.duminy.relocator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.write;
+
+class SourceTreeGenerator {
+    static final String BASE_PACKAGE = "org.acme";
+    static final String RELOCATED_PACKAGE = BASE_PACKAGE + ".relocated";
+    static final String TARGET_PACKAGE = "shaded.acme.relocated";
+
+    private final long seed;
+    private final int fileCount;
+    private final int membersPerFile;
+    private final int packageDepth;
+    private final double referenceDensity;
+
+    SourceTreeGenerator(long seed, int fileCount, int membersPerFile, int packageDepth, double referenceDensity) {
+        this.seed = seed;
+        this.fileCount = fileCount;
+        this.membersPerFile = membersPerFile;
+        this.packageDepth = packageDepth;
+        this.referenceDensity = referenceDensity;
+    }
+
+    void generate(Path directory) throws IOException {
+        for (int index = 0; index < fileCount; index++) {
+            String packageName = packageName(index);
+            Path packageDirectory = createDirectories(directory.resolve(packageName.replace('.', '/')));
+            write(packageDirectory.resolve(className(index) + ".java"), generateSource(index).getBytes(UTF_8));
+        }
+    }
+
+    String generateSource(int index) {
+        Random random = new Random(seed * 31 + index);
+        String packageName = packageName(index);
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(packageName).append(";\n\n");
+        source.append("import java.util.List;\n");
+        if (random.nextDouble() < referenceDensity) {
+            source.append("import ").append(RELOCATED_PACKAGE).append(".Class").append(random.nextInt(fileCount))
+                  .append(";\n");
+        }
+        source.append("\npublic class ").append(className(index)).append(" {\n");
+        for (int member = 0; member < membersPerFile; member++) {
+            String type = (random.nextDouble() < referenceDensity) ?
+                RELOCATED_PACKAGE + ".Class" + random.nextInt(fileCount) :
+                BASE_PACKAGE + ".Other" + random.nextInt(fileCount);
+            source.append("    private ").append(type).append(" field").append(member).append(";\n\n");
+            source.append("    public List<").append(type).append("> method").append(member).append("(int value) {\n");
+            source.append("        ").append(type).append(" local = new ").append(type).append("();\n");
+            source.append("        if (value > ").append(random.nextInt(100)).append(") {\n");
+            source.append("            return java.util.Collections.singletonList(local);\n");
+            source.append("        }\n");
+            source.append("        return java.util.Collections.emptyList();\n");
+            source.append("    }\n\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private String packageName(int index) {
+        if (new Random(seed * 17 + index).nextDouble() < referenceDensity) {
+            return RELOCATED_PACKAGE;
+        }
+        StringBuilder packageName = new StringBuilder(BASE_PACKAGE);
+        for (int depth = 0; depth < packageDepth; depth++) {
+            packageName.append(".p").append((index >> (2 * depth)) & 3);
+        }
+        return packageName.toString();
+    }
+
+    private static String className(int index) {
+        return "Class" + index;
+    }
+}
@@ -0,0 +1,424 @@
+package fr.duminy.relocator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+class ClassFileRelocator {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int UTF8 = 1;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int PACKAGE = 20;
+
+    private final RelocationIndex index;
+    private final byte[] bytes;
+    private final List<Relocation> appliedRelocations = new ArrayList<>();
+    private byte[] relocatedBytes;
+    private String sourceClassName;
+    private String className;
+    private String classSimpleName;
+
+    ClassFileRelocator(RelocationIndex index, byte[] bytes) {
+        this.index = index;
+        this.bytes = bytes;
+    }
+
+    String getSourceClassName() {
+        return sourceClassName;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    boolean isModified() {
+        return relocatedBytes != null;
+    }
+
+    byte[] getBytes() {
+        return (relocatedBytes == null) ? bytes : relocatedBytes;
+    }
+
+    List<Relocation> getAppliedRelocations() {
+        return appliedRelocations;
+    }
+
+    boolean relocate() {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC) {
+            throw new RelocatorException("Not a class file");
+        }
+        buffer.getInt(); // minor and major versions
+        int count = buffer.getShort() & 0xFFFF;
+        int[] offsets = new int[count + 1];
+        int[] tags = new int[count];
+        int[] kinds = new int[count];
+        boolean[] strings = new boolean[count];
+        for (int i = 1; i < count; i++) {
+            offsets[i] = buffer.position();
+            tags[i] = buffer.get() & 0xFF;
+            switch (tags[i]) {
+                case UTF8:
+                    int length = buffer.getShort() & 0xFFFF;
+                    buffer.position(buffer.position() + length);
+                    break;
+                case CLASS:
+                case PACKAGE:
+                    kinds[checkIndex(buffer.getShort() & 0xFFFF, count)] = tags[i];
+                    break;
+                case STRING:
+                    strings[checkIndex(buffer.getShort() & 0xFFFF, count)] = true;
+                    break;
+                case 16: // MethodType
+                case 19: // Module
+                    buffer.getShort();
+                    break;
+                case 15: // MethodHandle
+                    buffer.get();
+                    buffer.getShort();
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    buffer.getInt();
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    buffer.getLong();
+                    offsets[++i] = buffer.position();
+                    break;
+                default:
+                    throw new RelocatorException("Invalid constant pool tag " + tags[i] + " at index " + i);
+            }
+        }
+        offsets[count] = buffer.position();
+        buffer.getShort(); // access flags
+        int thisClass = buffer.getShort() & 0xFFFF;
+        sourceClassName = readUtf8(offsets[readIndex(offsets[thisClass] + 1)]);
+        if (sourceClassName == null) {
+            throw new RelocatorException("Invalid class name at index " + thisClass);
+        }
+        int simpleNameStart = sourceClassName.lastIndexOf('/') + 1;
+        int simpleNameEnd = sourceClassName.indexOf('$', simpleNameStart);
+        classSimpleName = sourceClassName.substring(simpleNameStart, (simpleNameEnd < 0) ? sourceClassName.length() :
+            simpleNameEnd);
+        className = sourceClassName;
+
+        String[] replacements = new String[count];
+        boolean modified = false;
+        for (int i = 1; i < count; i++) {
+            if (tags[i] != UTF8) {
+                continue;
+            }
+            String value = readUtf8(offsets[i]);
+            if (value == null) {
+                continue;
+            }
+            String replacement;
+            if (kinds[i] == PACKAGE) {
+                replacement = relocatePackage(value);
+            } else if ((kinds[i] == CLASS) && !value.startsWith("[")) {
+                replacement = relocateInternalName(value);
+            } else {
+                replacement = new SignatureRewriter(value).rewrite();
+            }
+            if ((replacement != null) && !replacement.equals(value)) {
+                replacements[i] = replacement;
+                modified = true;
+            }
+        }
+        if (!modified) {
+            return false;
+        }
+
+        int thisClassName = readIndex(offsets[thisClass] + 1);
+        if (replacements[thisClassName] != null) {
+            className = replacements[thisClassName];
+        }
+        // a string constant sharing its Utf8 entry with a relocated name or descriptor keeps a copy of its value
+        int[] stringCopies = new int[count];
+        int newCount = count;
+        for (int i = 1; i < count; i++) {
+            if (strings[i] && (replacements[i] != null)) {
+                stringCopies[i] = newCount++;
+            }
+        }
+        if (newCount > 0xFFFF) {
+            throw new RelocatorException("Constant pool too large for " + sourceClassName);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length + 256);
+        DataOutputStream data = new DataOutputStream(output);
+        try {
+            output.write(bytes, 0, offsets[1] - 2);
+            data.writeShort(newCount);
+            for (int i = 1; i < count; i++) {
+                if (replacements[i] != null) {
+                    data.writeByte(UTF8);
+                    data.writeUTF(replacements[i]);
+                } else if ((tags[i] == STRING) && (stringCopies[readIndex(offsets[i] + 1)] != 0)) {
+                    data.writeByte(STRING);
+                    data.writeShort(stringCopies[readIndex(offsets[i] + 1)]);
+                } else {
+                    output.write(bytes, offsets[i], offsets[i + 1] - offsets[i]);
+                }
+            }
+            for (int i = 1; i < count; i++) {
+                if (stringCopies[i] != 0) {
+                    output.write(bytes, offsets[i], offsets[i + 1] - offsets[i]);
+                }
+            }
+            output.write(bytes, offsets[count], bytes.length - offsets[count]);
+        } catch (UTFDataFormatException e) {
+            throw new RelocatorException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        relocatedBytes = output.toByteArray();
+        return true;
+    }
+
+    private static int checkIndex(int index, int count) {
+        if ((index == 0) || (index >= count)) {
+            throw new RelocatorException("Invalid constant pool index " + index);
+        }
+        return index;
+    }
+
+    private int readIndex(int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private String readUtf8(int offset) {
+        try {
+            return new DataInputStream(new ByteArrayInputStream(bytes, offset + 1, bytes.length - offset - 1))
+                .readUTF();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private String relocatePackage(String name) {
+        Relocation relocation = index.find(name.replace('/', '.'), classSimpleName);
+        return (relocation == null) ? name : relocate(name, relocation);
+    }
+
+    private String relocateInternalName(String name) {
+        int slash = name.lastIndexOf('/');
+        if (slash < 0) {
+            return name;
+        }
+        Relocation relocation = index.find(name.substring(0, slash).replace('/', '.'), classSimpleName);
+        return (relocation == null) ? name : relocate(name, relocation);
+    }
+
+    private String relocate(String name, Relocation relocation) {
+        String targetPackage = relocation.getTargetPackage();
+        if (targetPackage.equals(relocation.getSourcePackage())) {
+            return name;
+        }
+        appliedRelocations.add(relocation);
+        return targetPackage.replace('.', '/') + name.substring(relocation.getSourcePackage().length());
+    }
+
+    private class SignatureRewriter {
+        private final String signature;
+        private final StringBuilder result;
+        private int position;
+
+        private SignatureRewriter(String signature) {
+            this.signature = signature;
+            this.result = new StringBuilder(signature.length() + 16);
+        }
+
+        private String rewrite() {
+            if ((signature.indexOf(';') < 0) || (signature.indexOf('L') < 0)) {
+                return null;
+            }
+            int applied = appliedRelocations.size();
+            boolean valid;
+            if (peek() == '<') {
+                valid = typeParameters() && typeSignatures();
+            } else if (peek() == '(') {
+                valid = methodSignature();
+            } else {
+                valid = typeSignatures();
+            }
+            if (!valid || (position != signature.length())) {
+                appliedRelocations.subList(applied, appliedRelocations.size()).clear();
+                return null;
+            }
+            return result.toString();
+        }
+
+        private boolean methodSignature() {
+            copy();
+            while (peek() != ')') {
+                if (!typeSignature()) {
+                    return false;
+                }
+            }
+            copy();
+            if (!typeSignature()) {
+                return false;
+            }
+            while (peek() == '^') {
+                copy();
+                if (!typeSignature()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean typeSignatures() {
+            if (position == signature.length()) {
+                return false;
+            }
+            while (position < signature.length()) {
+                if (!typeSignature()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean typeParameters() {
+            copy();
+            while (peek() != '>') {
+                if (!identifier(':')) {
+                    return false;
+                }
+                while (peek() == ':') {
+                    copy();
+                    char c = peek();
+                    if (((c == 'L') || (c == 'T') || (c == '[')) && !typeSignature()) {
+                        return false;
+                    }
+                }
+            }
+            copy();
+            return true;
+        }
+
+        private boolean typeSignature() {
+            switch (peek()) {
+                case 'B':
+                case 'C':
+                case 'D':
+                case 'F':
+                case 'I':
+                case 'J':
+                case 'S':
+                case 'Z':
+                case 'V':
+                    copy();
+                    return true;
+                case '[':
+                    copy();
+                    return typeSignature();
+                case 'T':
+                    copy();
+                    if (!identifier(';')) {
+                        return false;
+                    }
+                    copy();
+                    return true;
+                case 'L':
+                    return classTypeSignature();
+                default:
+                    return false;
+            }
+        }
+
+        private boolean classTypeSignature() {
+            copy();
+            int start = position;
+            while ((position < signature.length()) && (";<.".indexOf(signature.charAt(position)) < 0)) {
+                position++;
+            }
+            if ((position == start) || (position == signature.length())) {
+                return false;
+            }
+            result.append(relocateInternalName(signature.substring(start, position)));
+            while (true) {
+                char c = peek();
+                if (c == ';') {
+                    copy();
+                    return true;
+                } else if (c == '<') {
+                    if (!typeArguments()) {
+                        return false;
+                    }
+                } else if (c == '.') {
+                    copy();
+                    if (!identifier('<', ';', '.')) {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        private boolean typeArguments() {
+            copy();
+            if (peek() == '>') {
+                return false;
+            }
+            while (peek() != '>') {
+                char c = peek();
+                if (c == '*') {
+                    copy();
+                    continue;
+                }
+                if ((c == '+') || (c == '-')) {
+                    copy();
+                }
+                if (!typeSignature()) {
+                    return false;
+                }
+            }
+            copy();
+            return true;
+        }
+
+        private boolean identifier(char... terminators) {
+            int start = position;
+            while (position < signature.length()) {
+                char c = signature.charAt(position);
+                for (char terminator : terminators) {
+                    if (c == terminator) {
+                        result.append(signature, start, position);
+                        return position > start;
+                    }
+                }
+                if ((c == '/') || (c == ';') || (c == '<') || (c == '>') || (c == ':') || (c == '.')) {
+                    return false;
+                }
+                position++;
+            }
+            return false;
+        }
+
+        private char peek() {
+            return (position < signature.length()) ? signature.charAt(position) : 0;
+        }
+
+        private void copy() {
+            result.append(signature.charAt(position++));
+        }
+    }
+}
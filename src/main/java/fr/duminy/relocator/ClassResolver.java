@@ -0,0 +1,197 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.PackageDeclaration;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.VariableDeclarationExpr;
+import com.github.javaparser.ast.stmt.ExpressionStmt;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.Files.isDirectory;
+import static java.nio.file.Files.newDirectoryStream;
+
+// tells which simple names refer to a relocated class, from the declarations and imports of a file
+// and the types found in the source directories
+class ClassResolver {
+    private final Map<String, List<ClassRelocation>> relocations = new HashMap<>();
+    private final List<Path> sourceDirectories;
+    // shared by all the files of a run, a package is listed the first time a file needs it
+    private final Map<String, Set<String>> packageTypes = new ConcurrentHashMap<>();
+
+    private ClassResolver(Collection<Relocation> relocations, List<Path> sourceDirectories) {
+        for (Relocation relocation : relocations) {
+            if (relocation instanceof ClassRelocation) {
+                ClassRelocation classRelocation = (ClassRelocation) relocation;
+                this.relocations.computeIfAbsent(classRelocation.getSourceClass(), name -> new ArrayList<>())
+                                .add(classRelocation);
+            }
+        }
+        this.sourceDirectories = sourceDirectories;
+    }
+
+    // null when there's no class relocation, nothing needs to be resolved
+    static ClassResolver create(Collection<Relocation> relocations, List<Path> sourceDirectories) {
+        ClassResolver resolver = new ClassResolver(relocations, sourceDirectories);
+        return resolver.relocations.isEmpty() ? null : resolver;
+    }
+
+    Scope scope(CompilationUnit compilationUnit) {
+        return new Scope(compilationUnit);
+    }
+
+    Set<String> getPackageTypes(String packageName) {
+        return packageTypes.computeIfAbsent(packageName, this::listPackageTypes);
+    }
+
+    private Set<String> listPackageTypes(String packageName) {
+        Set<String> types = new HashSet<>();
+        for (Path sourceDirectory : sourceDirectories) {
+            Path directory = packageName.isEmpty() ? sourceDirectory :
+                sourceDirectory.resolve(packageName.replace('.', '/'));
+            if (!isDirectory(directory)) {
+                continue;
+            }
+            try (DirectoryStream<Path> files = newDirectoryStream(directory, "*.java")) {
+                for (Path file : files) {
+                    String fileName = file.getFileName().toString();
+                    if (!FileTransaction.isTransactionFile(file)) {
+                        types.add(fileName.substring(0, fileName.length() - ".java".length()));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RelocatorException(e);
+            }
+        }
+        return types;
+    }
+
+    private ClassRelocation find(String packageName, String simpleName) {
+        for (ClassRelocation relocation : relocations.getOrDefault(simpleName, Collections.emptyList())) {
+            if (relocation.getSourcePackage().equals(packageName)) {
+                return relocation;
+            }
+        }
+        return null;
+    }
+
+    class Scope {
+        private final String packageName;
+        private final Set<String> declaredTypes = new HashSet<>();
+        // the nodes where a variable named like a relocated class is declared, by name
+        private final Map<String, List<Node>> variableScopes = new HashMap<>();
+        private final Set<String> singleTypeImports = new HashSet<>();
+        private final List<String> onDemandImports = new ArrayList<>();
+        private final Map<String, ClassRelocation> resolved = new HashMap<>();
+
+        private Scope(CompilationUnit compilationUnit) {
+            packageName = compilationUnit.getPackageDeclaration().map(PackageDeclaration::getNameAsString).orElse("");
+            for (ImportDeclaration importDeclaration : compilationUnit.getImports()) {
+                if (importDeclaration.isStatic()) {
+                    continue;
+                }
+                if (importDeclaration.isAsterisk()) {
+                    onDemandImports.add(importDeclaration.getNameAsString());
+                } else {
+                    singleTypeImports.add(importDeclaration.getName().getIdentifier());
+                }
+            }
+            for (TypeDeclaration<?> type : compilationUnit.findAll(TypeDeclaration.class)) {
+                declaredTypes.add(type.getNameAsString());
+            }
+            for (VariableDeclarator variable : compilationUnit.findAll(VariableDeclarator.class)) {
+                addVariable(variable.getNameAsString(), variable);
+            }
+            for (Parameter parameter : compilationUnit.findAll(Parameter.class)) {
+                addVariable(parameter.getNameAsString(), parameter);
+            }
+        }
+
+        private void addVariable(String name, Node declaration) {
+            if (!relocations.containsKey(name)) {
+                return;
+            }
+            // a block, a for or try statement, a method, a lambda, a catch clause, or a type for a field
+            Node scope = declaration.getParentNode().orElse(null);
+            while ((scope instanceof VariableDeclarationExpr) || (scope instanceof ExpressionStmt)
+                   || (scope instanceof FieldDeclaration)) {
+                scope = scope.getParentNode().orElse(null);
+            }
+            if (scope != null) {
+                variableScopes.computeIfAbsent(name, key -> new ArrayList<>()).add(scope);
+            }
+        }
+
+        private boolean isVariable(String name, Node reference) {
+            for (Node scope : variableScopes.getOrDefault(name, Collections.emptyList())) {
+                for (Node node = reference; node != null; node = node.getParentNode().orElse(null)) {
+                    if (node == scope) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        String getPackageName() {
+            return packageName;
+        }
+
+        // the relocation of the class named by the identifier at index in a reference, qualified by the identifiers
+        // before it; in an expression (null otherwise), a variable in scope with the same name as an unqualified
+        // class obscures it
+        ClassRelocation resolve(List<String> identifiers, int index, Node expression) {
+            String simpleName = identifiers.get(index);
+            if (!relocations.containsKey(simpleName)) {
+                return null;
+            }
+            if (index > 0) {
+                return find(String.join(".", identifiers.subList(0, index)), simpleName);
+            }
+            if ((expression != null) && isVariable(simpleName, expression)) {
+                return null;
+            }
+            return resolved.computeIfAbsent(simpleName, this::resolve);
+        }
+
+        // same precedence as the compiler: declared types, single-type imports, same package, on-demand imports
+        private ClassRelocation resolve(String simpleName) {
+            if (declaredTypes.contains(simpleName)) {
+                return null;
+            }
+            if (singleTypeImports.contains(simpleName)) {
+                // when it's the relocated class, the import is relocated and the simple name still refers to it
+                return null;
+            }
+            ClassRelocation relocation = find(packageName, simpleName);
+            if ((relocation != null) || getPackageTypes(packageName).contains(simpleName)) {
+                return relocation;
+            }
+            for (String onDemandImport : onDemandImports) {
+                ClassRelocation candidate = find(onDemandImport, simpleName);
+                if ((candidate == null) && getPackageTypes(onDemandImport).contains(simpleName)) {
+                    // ambiguous, or another class
+                    return null;
+                }
+                relocation = (relocation == null) ? candidate : relocation;
+            }
+            return relocation;
+        }
+    }
+}
@@ -1,29 +1,152 @@
 package fr.duminy.relocator;
 
 import java.io.IOException;
+import java.nio.file.FileSystem;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
 import static java.nio.file.Files.walkFileTree;
 
 @SuppressWarnings("WeakerAccess")
 public class FileCollector {
+    private final List<String> includes = new CopyOnWriteArrayList<>();
+    private final List<String> excludes = new CopyOnWriteArrayList<>();
+    private final List<String> resourceIncludes = new CopyOnWriteArrayList<>();
+    private volatile List<PathMatcher> resourceMatchers;
+    private volatile boolean classFilesIncluded;
+
+    public void addInclude(String glob) {
+        includes.add(glob);
+    }
+
+    public void addExclude(String glob) {
+        excludes.add(glob);
+    }
+
+    public void addResourceInclude(String glob) {
+        resourceIncludes.add(glob);
+        resourceMatchers = null;
+    }
+
+    public void setClassFilesIncluded(boolean classFilesIncluded) {
+        this.classFilesIncluded = classFilesIncluded;
+    }
+
     public List<Path> collectFiles(Path directory) throws IOException {
         List<Path> files = new ArrayList<>();
+        collectFiles(directory, files::add);
+        return files;
+    }
+
+    public void collectFiles(Path directory, Consumer<Path> consumer) throws IOException {
+        FileSystem fileSystem = directory.getFileSystem();
+        List<PathMatcher> includeMatchers = matchers(fileSystem, includes);
+        List<PathMatcher> excludeMatchers = matchers(fileSystem, excludes);
+        List<PathMatcher> resourceMatchers = matchers(fileSystem, resourceIncludes);
         walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return (!dir.equals(directory) && matches(excludeMatchers, directory, dir)) ? SKIP_SUBTREE : CONTINUE;
+            }
+
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
-                if (attr.isRegularFile() && file.getFileName().toString().endsWith(".java")) {
-                    files.add(file.toAbsolutePath());
+                if (attr.isRegularFile()
+                    && accepts(includeMatchers, excludeMatchers, resourceMatchers, directory, file)) {
+                    consumer.accept(file.toAbsolutePath());
                 }
                 return CONTINUE;
             }
         });
-        return files;
+    }
+
+    boolean accepts(Path directory, Path file) {
+        FileSystem fileSystem = directory.getFileSystem();
+        List<PathMatcher> excludeMatchers = matchers(fileSystem, excludes);
+        return !isExcluded(excludeMatchers, directory, file.getParent())
+               && accepts(matchers(fileSystem, includes), excludeMatchers, matchers(fileSystem, resourceIncludes),
+                          directory, file);
+    }
+
+    // true when dir, or one of its parents below directory, is excluded
+    boolean isExcluded(Path directory, Path dir) {
+        return isExcluded(matchers(directory.getFileSystem(), excludes), directory, dir);
+    }
+
+    private static boolean isExcluded(List<PathMatcher> excludeMatchers, Path directory, Path dir) {
+        for (; (dir != null) && !dir.equals(directory); dir = dir.getParent()) {
+            if (matches(excludeMatchers, directory, dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean accepts(List<PathMatcher> includeMatchers, List<PathMatcher> excludeMatchers,
+                            List<PathMatcher> resourceMatchers, Path directory, Path file) {
+        return (isIncluded(includeMatchers, directory, file)
+                || (mayBeResource(file.getFileName().toString()) && matches(resourceMatchers, directory, file)))
+               && !matches(excludeMatchers, directory, file) && !FileTransaction.isTransactionFile(file);
+    }
+
+    boolean isResource(Path relativePath) {
+        String fileName = relativePath.getFileName().toString();
+        if (ResourceRelocator.MODULE_INFO.equals(fileName)) {
+            return true;
+        } else if (!mayBeResource(fileName)) {
+            return false;
+        }
+        List<PathMatcher> matchers = resourceMatchers;
+        if (matchers == null) {
+            matchers = matchers(relativePath.getFileSystem(), resourceIncludes);
+            resourceMatchers = matchers;
+        }
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relativePath) || matcher.matches(relativePath.getFileName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // sources and class files are never rewritten as text, whatever the resource globs
+    private static boolean mayBeResource(String fileName) {
+        return !fileName.endsWith(".java") && !fileName.endsWith(".class");
+    }
+
+    private boolean isIncluded(List<PathMatcher> includeMatchers, Path directory, Path file) {
+        if (includeMatchers.isEmpty()) {
+            String fileName = file.getFileName().toString();
+            return fileName.endsWith(".java") || (classFilesIncluded && fileName.endsWith(".class"));
+        }
+        return matches(includeMatchers, directory, file);
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, Path directory, Path path) {
+        Path relativePath = directory.relativize(path);
+        Path fileName = path.getFileName();
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relativePath) || matcher.matches(fileName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<PathMatcher> matchers(FileSystem fileSystem, List<String> globs) {
+        List<PathMatcher> matchers = new ArrayList<>(globs.size());
+        for (String glob : globs) {
+            matchers.add(fileSystem.getPathMatcher("glob:" + glob));
+        }
+        return matchers;
     }
 }
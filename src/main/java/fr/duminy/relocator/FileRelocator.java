@@ -1,96 +1,333 @@
 package fr.duminy.relocator;
 
+import com.github.javaparser.Range;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.ImportDeclaration;
-import com.github.javaparser.ast.PackageDeclaration;
-import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.Name;
 import com.github.javaparser.ast.expr.NameExpr;
-import com.github.javaparser.ast.nodeTypes.NodeWithName;
-import com.github.javaparser.ast.nodeTypes.NodeWithSimpleName;
-import com.github.javaparser.ast.nodeTypes.NodeWithType;
 import com.github.javaparser.ast.type.ClassOrInterfaceType;
 import com.github.javaparser.ast.visitor.GenericVisitorAdapter;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
-import java.util.function.Consumer;
 
 class FileRelocator {
-    private final List<Relocation> relocations = new ArrayList<>();
+    private final List<List<Relocation>> stages = new ArrayList<>();
+    private volatile RelocationIndex index;
 
-    void addRelocation(Relocation relocation) {
-        relocations.add(relocation);
+    FileRelocator() {
+        stages.add(new ArrayList<>());
+    }
+
+    synchronized void addRelocation(Relocation relocation) {
+        stages.get(stages.size() - 1).add(relocation);
+        index = null;
+    }
+
+    synchronized void nextStage() {
+        if (!stages.get(stages.size() - 1).isEmpty()) {
+            stages.add(new ArrayList<>());
+            index = null;
+        }
+    }
+
+    List<Relocation> getRelocations() {
+        return getIndex().getRelocations();
     }
 
     boolean relocate(CompilationUnit compilationUnit) {
-        boolean[] modified = new boolean[1];
+        return relocate(compilationUnit, null);
+    }
+
+    boolean relocate(CompilationUnit compilationUnit, List<TextEdit> edits) {
+        return relocate(compilationUnit, edits, null);
+    }
+
+    // with a resolver, the references to a relocated class are also found in the files of other classes
+    boolean relocate(CompilationUnit compilationUnit, List<TextEdit> edits, ClassResolver classResolver) {
         String classSimpleName = compilationUnit.getPrimaryTypeName().orElse("");
+        Rewriter rewriter = new Rewriter(getIndex(), classSimpleName, edits,
+                                         (classResolver == null) ? null : classResolver.scope(compilationUnit));
         compilationUnit.accept(new GenericVisitorAdapter<Object, Object>() {
-            @Override public Object visit(PackageDeclaration n, Object arg) {
-                replacePackage(n, classSimpleName, modified);
-                return super.visit(n, arg);
-            }
-
-            @Override public Object visit(CompilationUnit n, Object arg) {
-                for (ImportDeclaration importDeclaration : compilationUnit.getImports()) {
-                    replacePackage(importDeclaration, classSimpleName, modified);
+            @Override public Object visit(Name n, Object arg) {
+                if (NAME_CHAIN.isTop(n)) {
+                    rewriter.relocate(n, NAME_CHAIN);
                 }
                 return super.visit(n, arg);
             }
 
-            @Override public Object visit(VariableDeclarator n, Object arg) {
-                replacePackage((NodeWithType) n, classSimpleName, modified);
+            @Override public Object visit(ClassOrInterfaceType n, Object arg) {
+                if (TYPE_CHAIN.isTop(n)) {
+                    rewriter.relocate(n, TYPE_CHAIN);
+                }
                 return super.visit(n, arg);
             }
 
             @Override public Object visit(NameExpr n, Object arg) {
-                replacePackage(n, classSimpleName, modified);
+                if (EXPRESSION_CHAIN.isTop(n)) {
+                    rewriter.relocate(n, EXPRESSION_CHAIN);
+                }
                 return super.visit(n, arg);
             }
 
-            @Override public Object visit(ClassOrInterfaceType n, Object arg) {
-                replacePackage(n, classSimpleName, modified);
+            @Override public Object visit(FieldAccessExpr n, Object arg) {
+                if (EXPRESSION_CHAIN.isTop(n)) {
+                    rewriter.relocate(n, EXPRESSION_CHAIN);
+                }
                 return super.visit(n, arg);
             }
-
         }, null);
-        return modified[0];
+        return rewriter.modified;
     }
 
-    private void replacePackage(NodeWithType node, String classSimpleName, boolean[] modified) {
-        replacePackage(node.getType().toString(), node::setType, classSimpleName, modified);
+    // same as relocating the names of the package and import declarations in the AST
+    boolean relocate(SourceHeader header, String classSimpleName, List<TextEdit> edits) {
+        RelocationIndex.Matcher matcher = getIndex().matcher(classSimpleName);
+        boolean modified = false;
+        for (SourceHeader.QualifiedName name : header.getNames()) {
+            matcher.reset(classSimpleName);
+            for (int i = 0; i < name.size(); i++) {
+                if (!matcher.next(header.getSource(), name.getStart(i), name.getEnd(i))) {
+                    break;
+                }
+            }
+            Relocation matchedRelocation = matcher.getRelocation();
+            if ((matchedRelocation == null)
+                || matchedRelocation.getTargetPackage().equals(matchedRelocation.getSourcePackage())) {
+                continue;
+            }
+            edits.add(new TextEdit(header.getRange(name.getStart(0), name.getEnd(matcher.getDepth() - 1)),
+                                   matchedRelocation, matchedRelocation.getTargetPackage()));
+            modified = true;
+        }
+        return modified;
     }
 
-    private void replacePackage(NodeWithName node, String classSimpleName, boolean[] modified) {
-        replacePackage(node.getName().toString(), node::setName, classSimpleName, modified);
+    String relocatePackage(String packageName, String classSimpleName) {
+        Relocation relocation = getIndex().find(packageName, classSimpleName);
+        if (relocation == null) {
+            return packageName;
+        }
+        return relocation.getTargetPackage() + packageName.substring(relocation.getSourcePackage().length());
     }
 
-    private void replacePackage(NodeWithSimpleName node, String classSimpleName, boolean[] modified) {
-        replacePackage(node.getName().toString(), node::setName, classSimpleName, modified);
+    RelocationIndex getIndex() {
+        RelocationIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    RelocationPlan plan = new RelocationPlan(stages);
+                    result = new RelocationIndex(plan.compile(), plan.getOrigins());
+                    index = result;
+                }
+            }
+        }
+        return result;
     }
 
-    private void replacePackage(String name, Consumer<String> nameSetter, String classSimpleName, boolean[] modified) {
-        for (Relocation relocation : relocations) {
-            if (doesNotRelocateClass(relocation, classSimpleName)) {
-                continue;
+    abstract static class Chain<N extends Node> {
+        abstract boolean isSegment(Node node);
+
+        abstract Node getQualifier(N node);
+
+        abstract String getIdentifier(N node);
+
+        abstract N create(N qualifier, String identifier, N replaced);
+
+        // the part of an unqualified node that is replaced when it's qualified, without annotations or type arguments
+        Range getNameRange(N node) {
+            return node.getRange().orElse(null);
+        }
+
+        boolean isTop(N node) {
+            Node parent = node.getParentNode().orElse(null);
+            return !isSegment(parent) || (getQualifier(cast(parent)) != node);
+        }
+
+        @SuppressWarnings("unchecked")
+        N cast(Node node) {
+            return (N) node;
+        }
+
+        N create(String qualifiedName, N replaced) {
+            N node = null;
+            int start = 0;
+            while (start <= qualifiedName.length()) {
+                int end = qualifiedName.indexOf('.', start);
+                end = (end < 0) ? qualifiedName.length() : end;
+                boolean last = end == qualifiedName.length();
+                node = create(node, qualifiedName.substring(start, end), last ? replaced : null);
+                start = end + 1;
+            }
+            return node;
+        }
+    }
+
+    static final Chain<Name> NAME_CHAIN = new Chain<Name>() {
+        @Override boolean isSegment(Node node) {
+            return node instanceof Name;
+        }
+
+        @Override Node getQualifier(Name node) {
+            return node.getQualifier().orElse(null);
+        }
+
+        @Override String getIdentifier(Name node) {
+            return node.getIdentifier();
+        }
+
+        @Override Name create(Name qualifier, String identifier, Name replaced) {
+            return new Name(qualifier, identifier);
+        }
+    };
+
+    static final Chain<ClassOrInterfaceType> TYPE_CHAIN = new Chain<ClassOrInterfaceType>() {
+        @Override boolean isSegment(Node node) {
+            return node instanceof ClassOrInterfaceType;
+        }
+
+        @Override Node getQualifier(ClassOrInterfaceType node) {
+            return node.getScope().orElse(null);
+        }
+
+        @Override String getIdentifier(ClassOrInterfaceType node) {
+            return node.getName().getIdentifier();
+        }
+
+        @Override ClassOrInterfaceType create(ClassOrInterfaceType qualifier, String identifier,
+                                             ClassOrInterfaceType replaced) {
+            ClassOrInterfaceType type = new ClassOrInterfaceType(qualifier, identifier);
+            if (replaced != null) {
+                replaced.getTypeArguments().ifPresent(type::setTypeArguments);
+                type.setAnnotations(replaced.getAnnotations());
             }
+            return type;
+        }
 
-            if (name.equals(relocation.getSourcePackage())) {
-                nameSetter.accept(relocation.getTargetPackage());
-                modified[0] = true;
-                break;
+        @Override Range getNameRange(ClassOrInterfaceType node) {
+            return node.getName().getRange().orElse(null);
+        }
+    };
+
+    static final Chain<Expression> EXPRESSION_CHAIN = new Chain<Expression>() {
+        @Override boolean isSegment(Node node) {
+            return (node instanceof NameExpr) || (node instanceof FieldAccessExpr);
+        }
+
+        @Override Node getQualifier(Expression node) {
+            return (node instanceof FieldAccessExpr) ? ((FieldAccessExpr) node).getScope() : null;
+        }
+
+        @Override String getIdentifier(Expression node) {
+            return (node instanceof FieldAccessExpr) ? ((FieldAccessExpr) node).getName().getIdentifier() :
+                ((NameExpr) node).getName().getIdentifier();
+        }
+
+        @Override Expression create(Expression qualifier, String identifier, Expression replaced) {
+            return (qualifier == null) ? new NameExpr(identifier) : new FieldAccessExpr(qualifier, identifier);
+        }
+    };
+
+    private static class Rewriter {
+        private final RelocationIndex.Matcher matcher;
+        private final String classSimpleName;
+        private final List<TextEdit> edits;
+        private final ClassResolver.Scope scope;
+        private final List<Node> segments = new ArrayList<>();
+        private final List<String> identifiers = new ArrayList<>();
+        private boolean modified;
+
+        private Rewriter(RelocationIndex index, String classSimpleName, List<TextEdit> edits,
+                         ClassResolver.Scope scope) {
+            this.matcher = index.matcher(classSimpleName);
+            this.classSimpleName = classSimpleName;
+            this.edits = edits;
+            this.scope = scope;
+        }
+
+        private <N extends Node> void relocate(N top, Chain<N> chain) {
+            matcher.reset(classSimpleName);
+            segments.clear();
+            walk(top, chain);
+            Relocation matchedRelocation = matcher.getRelocation();
+            if (matchedRelocation == null) {
+                if (scope != null) {
+                    relocateClass(top, chain);
+                }
+                return;
             }
-            if (name.startsWith(relocation.getSourcePackage() + '.')) {
-                nameSetter.accept(name.replace(relocation.getSourcePackage(), relocation.getTargetPackage()));
-                modified[0] = true;
-                break;
+
+            String targetPackage = matchedRelocation.getTargetPackage();
+            if (targetPackage.equals(matchedRelocation.getSourcePackage())) {
+                return;
             }
+            replace(chain.cast(segments.get(matcher.getDepth() - 1)), chain, matchedRelocation, targetPackage);
+        }
+
+        // a qualified reference gets the target package, a simple name is qualified with it
+        private <N extends Node> void relocateClass(N top, Chain<N> chain) {
+            segments.clear();
+            identifiers.clear();
+            if (!collect(top, chain)) {
+                return;
+            }
+            for (int i = 0; i < identifiers.size(); i++) {
+                ClassRelocation relocation = scope.resolve(identifiers, i,
+                                                           (chain == EXPRESSION_CHAIN) ? segments.get(0) : null);
+                if ((relocation == null) || relocation.getTargetPackage().equals(relocation.getSourcePackage())) {
+                    continue;
+                }
+                if (i > 0) {
+                    replace(chain.cast(segments.get(i - 1)), chain, relocation, relocation.getTargetPackage());
+                } else if (!relocation.getTargetPackage().equals(scope.getPackageName())) {
+                    // unless the class is moved to the package of the file, where its simple name still refers to it
+                    N replaced = chain.cast(segments.get(0));
+                    replace(replaced, chain.getNameRange(replaced), chain, relocation,
+                            relocation.getTargetPackage() + '.' + relocation.getSourceClass());
+                }
+                return;
+            }
+        }
+
+        private <N extends Node> void replace(N replaced, Chain<N> chain, Relocation relocation, String replacement) {
+            replace(replaced, replaced.getRange().orElse(null), chain, relocation, replacement);
         }
-    }
 
-    private boolean doesNotRelocateClass(Relocation relocation, String classSimpleName) {
-        return (relocation instanceof ClassRelocation) && !Objects
-            .equals(((ClassRelocation) relocation).getSourceClass(), classSimpleName);
+        private <N extends Node> void replace(N replaced, Range range, Chain<N> chain, Relocation relocation,
+                                              String replacement) {
+            if (replaced.replace(chain.create(replacement, replaced))) {
+                if (edits != null) {
+                    edits.add(new TextEdit(range, relocation, replacement));
+                }
+                modified = true;
+            }
+        }
+
+        private <N extends Node> boolean collect(N node, Chain<N> chain) {
+            Node qualifier = chain.getQualifier(node);
+            if ((qualifier != null) && (!chain.isSegment(qualifier) || !collect(chain.cast(qualifier), chain))) {
+                return false;
+            }
+            segments.add(node);
+            identifiers.add(chain.getIdentifier(node));
+            return true;
+        }
+
+        private <N extends Node> boolean walk(N node, Chain<N> chain) {
+            Node qualifier = chain.getQualifier(node);
+            if ((qualifier != null) && (!chain.isSegment(qualifier) || !walk(chain.cast(qualifier), chain))) {
+                return false;
+            }
+
+            String identifier = chain.getIdentifier(node);
+            if (!matcher.next(identifier, 0, identifier.length())) {
+                return false;
+            }
+            segments.add(node);
+            return true;
+        }
     }
 }
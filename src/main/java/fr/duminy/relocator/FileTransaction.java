@@ -0,0 +1,422 @@
+package fr.duminy.relocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+class FileTransaction {
+    private static final String TEMPORARY_SUFFIX = ".relocator-tmp";
+    private static final String BACKUP_SUFFIX = ".relocator-bak";
+    static final String LOG_FILE_NAME = ".relocator-commit";
+    private static final String BACKUP = "backup\t";
+    private static final String PUBLISH = "publish\t";
+    private static final String COMMITTED = "committed";
+    private static final String STAGING = "staging";
+    private static final String DIRECTORY = "directory\t";
+
+    // lists the renames of the commit in progress, so that an interrupted commit can be completed or undone
+    private final Path logFile;
+
+    private final Map<Path, Entry> entries = new LinkedHashMap<>();
+    private final Set<Path> deletions = new LinkedHashSet<>();
+    // all the outputs staged until the transaction ends, which includes the files already committed
+    private final Set<Path> outputs = new HashSet<>();
+    // true once the log tells that files are staged, so that a crash before the commit doesn't leave them behind
+    private volatile boolean staging;
+
+    FileTransaction() {
+        this(null);
+    }
+
+    FileTransaction(Path logFile) {
+        this.logFile = (logFile == null) ? null : logFile.toAbsolutePath().normalize();
+    }
+
+    static boolean isTransactionFile(Path file) {
+        String fileName = String.valueOf(file.getFileName());
+        return fileName.endsWith(TEMPORARY_SUFFIX) || fileName.endsWith(BACKUP_SUFFIX)
+               || fileName.equals(LOG_FILE_NAME);
+    }
+
+    void recover() throws IOException {
+        recover(Collections.emptyList());
+    }
+
+    // completes the commit interrupted by a crash if all its files were published, otherwise restores the backups and
+    // deletes the files staged in the directories, with the directories created for them
+    void recover(Collection<Path> directories) throws IOException {
+        if ((logFile == null) || !exists(logFile)) {
+            return;
+        }
+        List<String> lines = readAllLines(logFile, UTF_8);
+        boolean committed = !lines.isEmpty() && lines.get(lines.size() - 1).equals(COMMITTED);
+        if (!committed) {
+            for (String line : lines) {
+                if (line.startsWith(PUBLISH)) {
+                    String[] fields = line.substring(PUBLISH.length()).split("\t");
+                    Path temporaryFile = logFile.getFileSystem().getPath(fields[0]);
+                    // a temporary file that is gone was renamed to its output
+                    if (!deleteIfExists(temporaryFile)) {
+                        deleteIfExists(logFile.getFileSystem().getPath(fields[1]));
+                    }
+                }
+            }
+        }
+        for (String line : lines) {
+            if (line.startsWith(BACKUP)) {
+                Path file = logFile.getFileSystem().getPath(line.substring(BACKUP.length()));
+                Path backup = backup(file);
+                if (committed) {
+                    deleteIfExists(backup);
+                } else if (exists(backup)) {
+                    rename(backup, file);
+                }
+            }
+        }
+        if (!committed) {
+            for (Path directory : directories) {
+                deleteTemporaryFiles(directory);
+            }
+            // the deepest directories were logged last
+            for (int i = lines.size() - 1; i >= 0; i--) {
+                if (lines.get(i).startsWith(DIRECTORY)) {
+                    deleteIfEmpty(logFile.getFileSystem().getPath(lines.get(i).substring(DIRECTORY.length())));
+                }
+            }
+        }
+        delete(logFile);
+        sync(logFile.getParent());
+    }
+
+    private static void deleteTemporaryFiles(Path directory) throws IOException {
+        if (!isDirectory(directory)) {
+            return;
+        }
+        walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                    deleteIfExists(file);
+                }
+                return CONTINUE;
+            }
+        });
+    }
+
+    private static void deleteIfEmpty(Path directory) throws IOException {
+        try {
+            deleteIfExists(directory);
+        } catch (DirectoryNotEmptyException e) {
+            // also holds other files
+        }
+    }
+
+    // the original file, if any, is deleted once the output is published
+    void stage(Path original, Path output, byte[] bytes) throws IOException {
+        output = output.toAbsolutePath().normalize();
+        if ((original != null) && !original.toAbsolutePath().normalize().equals(output) && exists(output)) {
+            throw new FileAlreadyExistsException(output.toString());
+        }
+        Path temporaryFile = createTemporaryFile(output);
+        try {
+            write(temporaryFile, bytes);
+            force(temporaryFile);
+            add(original, output, temporaryFile);
+        } catch (IOException | RuntimeException e) {
+            deleteIfExists(temporaryFile);
+            throw e;
+        }
+    }
+
+    // the output gets the content of the file, as a hard link when the file system allows it
+    void stageLink(Path file, Path output) throws IOException {
+        output = output.toAbsolutePath().normalize();
+        if (exists(output) && isSameFile(file, output)) {
+            add(null, output, null);
+            return;
+        }
+        Path temporaryFile = createTemporaryFile(output);
+        try {
+            delete(temporaryFile);
+            try {
+                createLink(temporaryFile, file);
+            } catch (UnsupportedOperationException | IOException e) {
+                copy(file, temporaryFile, REPLACE_EXISTING);
+                force(temporaryFile);
+            }
+            add(null, output, temporaryFile);
+        } catch (IOException | RuntimeException e) {
+            deleteIfExists(temporaryFile);
+            throw e;
+        }
+    }
+
+    // the file is deleted on commit, unless it's an output of the transaction
+    void stageDeletion(Path file) {
+        synchronized (entries) {
+            deletions.add(file.toAbsolutePath().normalize());
+        }
+    }
+
+    private Path createTemporaryFile(Path output) throws IOException {
+        if ((logFile == null) || (staging && isDirectory(output.getParent()))) {
+            createDirectories(output.getParent());
+        } else {
+            synchronized (entries) {
+                StringBuilder log = new StringBuilder(staging ? "" : STAGING + '\n');
+                List<Path> createdDirectories = new ArrayList<>();
+                for (Path directory = output.getParent(); !exists(directory); directory = directory.getParent()) {
+                    createdDirectories.add(0, directory);
+                }
+                for (Path directory : createdDirectories) {
+                    log.append(DIRECTORY).append(directory).append('\n');
+                }
+                // logged before they are created
+                if (log.length() > 0) {
+                    writeLog(log.toString(), APPEND);
+                    staging = true;
+                }
+                createDirectories(output.getParent());
+            }
+        }
+        return createTempFile(output.getParent(), "." + output.getFileName(), TEMPORARY_SUFFIX);
+    }
+
+    // a file renamed before its content reaches the disk could be published empty by a crash
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private void add(Path original, Path output, Path temporaryFile) throws FileAlreadyExistsException {
+        synchronized (entries) {
+            if (!outputs.add(output)) {
+                throw new FileAlreadyExistsException(output.toString(), String.valueOf(original), "already relocated");
+            }
+            if (temporaryFile != null) {
+                original = (original == null) ? null : original.toAbsolutePath().normalize();
+                entries.put(output, new Entry(original, output, temporaryFile));
+            }
+        }
+    }
+
+    // the file holding the content of a staged output until it's published
+    Path getStagedFile(Path output) {
+        synchronized (entries) {
+            Entry entry = entries.get(output.toAbsolutePath().normalize());
+            return (entry == null) ? null : entry.temporaryFile;
+        }
+    }
+
+    // all the staged files are published, or none of them
+    void commit() throws IOException {
+        List<Entry> staged;
+        Set<Path> replacedFiles = new LinkedHashSet<>();
+        synchronized (entries) {
+            staged = new ArrayList<>(entries.values());
+            entries.clear();
+            for (Path file : deletions) {
+                if (!outputs.contains(file)) {
+                    replacedFiles.add(file);
+                }
+            }
+            deletions.clear();
+        }
+        if (staged.isEmpty() && replacedFiles.isEmpty()) {
+            return;
+        }
+
+        for (Entry entry : staged) {
+            replacedFiles.add(entry.output);
+            if (entry.original != null) {
+                replacedFiles.add(entry.original);
+            }
+        }
+        Map<Path, Path> backups = new LinkedHashMap<>();
+        List<Entry> published = new ArrayList<>();
+        try {
+            if (logFile != null) {
+                StringBuilder log = new StringBuilder();
+                for (Path file : replacedFiles) {
+                    log.append(BACKUP).append(file).append('\n');
+                }
+                for (Entry entry : staged) {
+                    log.append(PUBLISH).append(entry.temporaryFile).append('\t').append(entry.output).append('\n');
+                }
+                writeLog(log.toString(), APPEND);
+            }
+            for (Path file : replacedFiles) {
+                if (exists(file)) {
+                    Path backup = backup(file);
+                    rename(file, backup);
+                    backups.put(file, backup);
+                }
+            }
+            for (Entry entry : staged) {
+                rename(entry.temporaryFile, entry.output);
+                published.add(entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            rollback(staged, published, backups, e);
+            if (e.getSuppressed().length == 0) {
+                deleteLog(e);
+            } else {
+                // the next run finishes the rollback
+                synchronized (entries) {
+                    staging = false;
+                }
+            }
+            throw e;
+        }
+
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path file : replacedFiles) {
+            directories.add(file.getParent());
+        }
+        for (Path directory : directories) {
+            sync(directory);
+        }
+        if (logFile != null) {
+            writeLog(COMMITTED + '\n', APPEND);
+        }
+        for (Path backup : backups.values()) {
+            deleteIfExists(backup);
+        }
+        if (logFile != null) {
+            delete(logFile);
+            synchronized (entries) {
+                staging = false;
+            }
+        }
+    }
+
+    private void writeLog(String lines, StandardOpenOption option) throws IOException {
+        createDirectories(logFile.getParent());
+        try (FileChannel channel = FileChannel.open(logFile, CREATE, WRITE, option)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        sync(logFile.getParent());
+    }
+
+    private void deleteLog(Exception cause) {
+        if (logFile != null) {
+            try {
+                deleteIfExists(logFile);
+                synchronized (entries) {
+                    staging = false;
+                }
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    private static Path backup(Path file) {
+        return file.resolveSibling("." + file.getFileName() + BACKUP_SUFFIX);
+    }
+
+    // ends the transaction, the files staged since the last commit are discarded
+    void rollback() throws IOException {
+        List<Entry> staged;
+        synchronized (entries) {
+            staged = new ArrayList<>(entries.values());
+            entries.clear();
+            deletions.clear();
+            outputs.clear();
+        }
+        for (Entry entry : staged) {
+            deleteIfExists(entry.temporaryFile);
+        }
+        synchronized (entries) {
+            if (staging) {
+                deleteIfExists(logFile);
+                staging = false;
+            }
+        }
+    }
+
+    private static void rollback(List<Entry> staged, List<Entry> published, Map<Path, Path> backups, Exception cause) {
+        for (Entry entry : published) {
+            try {
+                deleteIfExists(entry.output);
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+        backups.forEach((file, backup) -> {
+            try {
+                rename(backup, file);
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        });
+        for (Entry entry : staged) {
+            try {
+                deleteIfExists(entry.temporaryFile);
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    private static void rename(Path source, Path target) throws IOException {
+        try {
+            move(source, target, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            move(source, target, REPLACE_EXISTING);
+        }
+    }
+
+    private static void sync(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // some platforms can't open a directory, the renames are then as durable as the platform makes them
+        }
+    }
+
+    private static class Entry {
+        private final Path original;
+        private final Path output;
+        private final Path temporaryFile;
+
+        private Entry(Path original, Path output, Path temporaryFile) {
+            this.original = Objects.equals(original, output) ? null : original;
+            this.output = output;
+            this.temporaryFile = temporaryFile;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package fr.duminy.relocator;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.Files.isDirectory;
+import static java.nio.file.Files.isRegularFile;
+
+@SuppressWarnings("WeakerAccess")
+public class MavenProject {
+    private static final String POM = "pom.xml";
+
+    private MavenProject() {
+    }
+
+    public static List<Path> findSourceDirectories(Path projectDirectory) throws IOException {
+        List<Path> sourceDirectories = new ArrayList<>();
+        findSourceDirectories(projectDirectory.toAbsolutePath().normalize(), sourceDirectories);
+        return sourceDirectories;
+    }
+
+    private static void findSourceDirectories(Path projectDirectory, List<Path> sourceDirectories)
+        throws IOException {
+        Path pom = projectDirectory.resolve(POM);
+        if (!isRegularFile(pom)) {
+            return;
+        }
+
+        Element project = parse(pom).getDocumentElement();
+        Element build = child(project, "build");
+        addIfDirectory(projectDirectory, text(build, "sourceDirectory", "src/main/java"), sourceDirectories);
+        addIfDirectory(projectDirectory, text(build, "testSourceDirectory", "src/test/java"), sourceDirectories);
+
+        Element modules = child(project, "modules");
+        if (modules != null) {
+            NodeList children = modules.getElementsByTagName("module");
+            for (int i = 0; i < children.getLength(); i++) {
+                String module = children.item(i).getTextContent().trim();
+                findSourceDirectories(projectDirectory.resolve(module).normalize(), sourceDirectories);
+            }
+        }
+    }
+
+    private static void addIfDirectory(Path projectDirectory, String directory, List<Path> sourceDirectories) {
+        Path sourceDirectory = projectDirectory.resolve(directory.replace("${project.basedir}/", "")).normalize();
+        if (isDirectory(sourceDirectory) && !sourceDirectories.contains(sourceDirectory)) {
+            sourceDirectories.add(sourceDirectory);
+        }
+    }
+
+    private static Document parse(Path pom) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(pom.toFile());
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Can't read " + pom, e);
+        }
+    }
+
+    private static Element child(Element parent, String name) {
+        if (parent == null) {
+            return null;
+        }
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if ((node instanceof Element) && name.equals(node.getNodeName())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static String text(Element parent, String name, String defaultValue) {
+        Element element = child(parent, name);
+        return (element == null) ? defaultValue : element.getTextContent().trim();
+    }
+}
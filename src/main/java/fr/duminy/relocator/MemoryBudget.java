@@ -0,0 +1,56 @@
+package fr.duminy.relocator;
+
+import java.util.concurrent.Semaphore;
+
+class MemoryBudget {
+    // rough heap cost of a parsed file (source text, tokens, AST and printed output) per byte of its content
+    static final int HEAP_BYTES_PER_FILE_BYTE = 32;
+    private static final int PERMIT_SIZE = 1024;
+
+    private final int capacity;
+    private final Semaphore permits;
+
+    MemoryBudget(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("bytes must be >= 1 : " + bytes);
+        }
+        capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / PERMIT_SIZE));
+        permits = new Semaphore(capacity);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getAvailable() {
+        return permits.availablePermits();
+    }
+
+    int reserve(long fileSize) {
+        int count = cost(fileSize);
+        try {
+            permits.acquire(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RelocatorException(e);
+        }
+        return count;
+    }
+
+    int tryReserve(long fileSize) {
+        int count = cost(fileSize);
+        return permits.tryAcquire(count) ? count : 0;
+    }
+
+    void release(int count) {
+        if (count > 0) {
+            permits.release(count);
+        }
+    }
+
+    // a file larger than the whole budget reserves all of it, and is therefore processed alone
+    private int cost(long fileSize) {
+        long bytes = Math.max(0, fileSize) * HEAP_BYTES_PER_FILE_BYTE;
+        return (int) Math.max(1, Math.min(capacity, bytes / PERMIT_SIZE));
+    }
+}
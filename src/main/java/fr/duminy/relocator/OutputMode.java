@@ -0,0 +1,6 @@
+package fr.duminy.relocator;
+
+public enum OutputMode {
+    PRETTY_PRINT,
+    PRESERVE_FORMATTING
+}
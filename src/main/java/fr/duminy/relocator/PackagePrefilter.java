@@ -0,0 +1,190 @@
+package fr.duminy.relocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+class PackagePrefilter {
+    private static final int MAPPING_THRESHOLD = 64 * 1024;
+
+    private final int[] byteClasses = new int[256];
+    private final int alphabetSize;
+    private final int[] transitions;
+    private final boolean[] accepting;
+    private final boolean ascii;
+
+    PackagePrefilter(Collection<String> packageNames) {
+        this(encode(packageNames));
+    }
+
+    private PackagePrefilter(List<byte[]> patterns) {
+        int classCount = 1;
+        boolean ascii = true;
+        for (byte[] pattern : patterns) {
+            for (byte b : pattern) {
+                ascii &= b >= 0;
+                if (byteClasses[b & 0xFF] == 0) {
+                    byteClasses[b & 0xFF] = classCount++;
+                }
+            }
+        }
+        alphabetSize = classCount;
+        this.ascii = ascii;
+
+        List<int[]> trie = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        trie.add(newState());
+        terminal.add(false);
+        for (byte[] pattern : patterns) {
+            int state = 0;
+            for (byte b : pattern) {
+                int c = byteClasses[b & 0xFF];
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newState());
+                    terminal.add(false);
+                }
+                state = trie.get(state)[c];
+            }
+            terminal.set(state, true);
+        }
+
+        int stateCount = trie.size();
+        transitions = new int[stateCount * alphabetSize];
+        accepting = new boolean[stateCount];
+        int[] failures = new int[stateCount];
+        Deque<Integer> queue = new ArrayDeque<>();
+        accepting[0] = terminal.get(0);
+        for (int c = 0; c < alphabetSize; c++) {
+            int next = trie.get(0)[c];
+            if (next < 0) {
+                transitions[c] = 0;
+            } else {
+                transitions[c] = next;
+                failures[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            accepting[state] = terminal.get(state) || accepting[failures[state]];
+            for (int c = 0; c < alphabetSize; c++) {
+                int next = trie.get(state)[c];
+                if (next < 0) {
+                    transitions[state * alphabetSize + c] = transitions[failures[state] * alphabetSize + c];
+                } else {
+                    transitions[state * alphabetSize + c] = next;
+                    failures[next] = transitions[failures[state] * alphabetSize + c];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    static PackagePrefilter create(Collection<Relocation> relocations, boolean slashes) {
+        return create(relocations, slashes, UTF_8);
+    }
+
+    // null when a relocation has no literal part, meaning any file may contain a reference, or when the files are
+    // encoded with a charset whose bytes can't be matched against ASCII names
+    static PackagePrefilter create(Collection<Relocation> relocations, boolean slashes, Charset charset) {
+        if (!isAsciiCompatible(charset)) {
+            return null;
+        }
+        List<byte[]> patterns = new ArrayList<>();
+        for (Relocation relocation : relocations) {
+            String packageName = (relocation instanceof PatternRelocation) ?
+                ((PatternRelocation) relocation).getLiteralPart() : relocation.getSourcePackage();
+            if (packageName.isEmpty()) {
+                return null;
+            }
+            patterns.add(packageName.getBytes(charset));
+            if (slashes) {
+                // class files encode their names in (modified) UTF-8, whatever the charset of the sources
+                patterns.add(packageName.replace('.', '/').getBytes(UTF_8));
+            }
+        }
+        return new PackagePrefilter(patterns);
+    }
+
+    static boolean isAsciiCompatible(Charset charset) {
+        String sample = "azAZ09._$/";
+        return Arrays.equals(sample.getBytes(charset), sample.getBytes(US_ASCII));
+    }
+
+    private static List<byte[]> encode(Collection<String> packageNames) {
+        List<byte[]> patterns = new ArrayList<>(packageNames.size());
+        for (String packageName : packageNames) {
+            patterns.add(packageName.getBytes(UTF_8));
+        }
+        return patterns;
+    }
+
+    private int[] newState() {
+        int[] state = new int[alphabetSize];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    boolean matches(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            if (size >= MAPPING_THRESHOLD) {
+                return matches(channel.map(READ_ONLY, 0, size));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && (channel.read(buffer) >= 0)) {
+                // read until the buffer is full
+            }
+            buffer.flip();
+            return matches(buffer);
+        }
+    }
+
+    // chars can only be matched when package names are ASCII, other chars then never belong to a match
+    boolean canMatchChars() {
+        return ascii;
+    }
+
+    boolean matches(CharSequence text, int start) {
+        if (accepting[0]) {
+            return true;
+        }
+        int state = 0;
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            state = transitions[state * alphabetSize + ((c < 0x80) ? byteClasses[c] : 0)];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches(ByteBuffer buffer) {
+        if (accepting[0]) {
+            return true;
+        }
+        int state = 0;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            state = transitions[state * alphabetSize + byteClasses[buffer.get(i) & 0xFF]];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
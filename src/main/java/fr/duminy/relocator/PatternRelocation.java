@@ -0,0 +1,114 @@
+package fr.duminy.relocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+@SuppressWarnings("WeakerAccess")
+public class PatternRelocation implements Relocation {
+    static final String WILDCARD = "*";
+
+    private final String sourcePattern;
+    private final String targetPattern;
+    private final List<String> excludes;
+    private final Map<String, Relocation> resolved = new ConcurrentHashMap<>();
+
+    public PatternRelocation(String sourcePattern, String targetPattern, String... excludes) {
+        this.sourcePattern = sourcePattern;
+        this.targetPattern = targetPattern;
+        this.excludes = unmodifiableList(new ArrayList<>(asList(excludes)));
+    }
+
+    @Override
+    public String getSourcePackage() {
+        return sourcePattern;
+    }
+
+    @Override
+    public String getTargetPackage() {
+        return targetPattern;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    Relocation resolve(String sourcePackage) {
+        return resolved.computeIfAbsent(sourcePackage, p -> new Resolved(p, getTargetPackage(p), this));
+    }
+
+    String getTargetPackage(String sourcePackage) {
+        String[] patternSegments = sourcePattern.split("\\.", -1);
+        String[] segments = sourcePackage.split("\\.", -1);
+        List<String> captures = new ArrayList<>();
+        for (int i = 0; i < patternSegments.length; i++) {
+            if (WILDCARD.equals(patternSegments[i])) {
+                captures.add(segments[i]);
+            }
+        }
+
+        StringBuilder target = new StringBuilder(targetPattern.length() + 16);
+        for (int i = 0; i < targetPattern.length(); i++) {
+            char c = targetPattern.charAt(i);
+            int end = i + 1;
+            while ((c == '$') && (end < targetPattern.length()) && Character.isDigit(targetPattern.charAt(end))) {
+                end++;
+            }
+            if (end > i + 1) {
+                target.append(captures.get(Integer.parseInt(targetPattern.substring(i + 1, end)) - 1));
+                i = end - 1;
+            } else {
+                target.append(c);
+            }
+        }
+        return target.toString();
+    }
+
+    // the longest run of literal segments, which any matching name contains
+    String getLiteralPart() {
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        for (String segment : sourcePattern.split("\\.", -1)) {
+            if (WILDCARD.equals(segment)) {
+                run.setLength(0);
+                continue;
+            }
+            if (run.length() > 0) {
+                run.append('.');
+            }
+            run.append(segment);
+            if (run.length() > longest.length()) {
+                longest = run.toString();
+            }
+        }
+        return longest;
+    }
+
+    int getWildcardCount() {
+        int count = 0;
+        for (String segment : sourcePattern.split("\\.", -1)) {
+            if (WILDCARD.equals(segment)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // a package matched by the pattern, which keeps track of the pattern for the hits
+    static class Resolved extends PackageRelocation {
+        private final PatternRelocation pattern;
+
+        private Resolved(String sourcePackage, String targetPackage, PatternRelocation pattern) {
+            super(sourcePackage, targetPackage);
+            this.pattern = pattern;
+        }
+
+        PatternRelocation getPattern() {
+            return pattern;
+        }
+    }
+}
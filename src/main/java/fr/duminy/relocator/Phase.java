@@ -0,0 +1,10 @@
+package fr.duminy.relocator;
+
+public enum Phase {
+    COLLECT,
+    READ,
+    PARSE,
+    RELOCATE,
+    PRINT,
+    WRITE
+}
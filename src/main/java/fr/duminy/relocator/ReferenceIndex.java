@@ -0,0 +1,317 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.PackageDeclaration;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.Name;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static fr.duminy.relocator.FileRelocator.EXPRESSION_CHAIN;
+import static fr.duminy.relocator.FileRelocator.NAME_CHAIN;
+import static fr.duminy.relocator.FileRelocator.TYPE_CHAIN;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+class ReferenceIndex {
+    private static final int MAGIC = 0x52494458; // RIDX
+    private static final int VERSION = 2;
+
+    private final Path indexFile;
+    private final List<SourceRoot> sourceRoots;
+    private final Map<String, Entry> previousEntries = new ConcurrentHashMap<>();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> affectedNames = new ConcurrentHashMap<>();
+    private final RelocationIndex relocations;
+    private final boolean classRelocations;
+    private final Set<String> resolvedClassPackages = new HashSet<>();
+
+    private ReferenceIndex(Path indexFile, List<SourceRoot> sourceRoots, RelocationIndex relocations,
+                           boolean classResolution) {
+        this.indexFile = indexFile;
+        this.sourceRoots = new ArrayList<>(sourceRoots);
+        this.relocations = relocations;
+        this.classRelocations = relocations.getRelocations().stream().anyMatch(r -> r instanceof ClassRelocation);
+        if (classResolution) {
+            for (Relocation relocation : relocations.getRelocations()) {
+                if (relocation instanceof ClassRelocation) {
+                    resolvedClassPackages.add(relocation.getSourcePackage());
+                }
+            }
+        }
+    }
+
+    static ReferenceIndex load(Path indexFile, List<SourceRoot> sourceRoots, RelocationIndex relocations,
+                               boolean classResolution) throws IOException {
+        ReferenceIndex index = new ReferenceIndex(indexFile, sourceRoots, relocations, classResolution);
+        if (!exists(indexFile)) {
+            return index;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(newInputStream(indexFile)))) {
+            if ((input.readInt() != MAGIC) || (input.readInt() != VERSION)
+                || !input.readUTF().equals(index.describeSourceRoots())) {
+                return index;
+            }
+            String[] names = new String[input.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = input.readUTF();
+            }
+            int fileCount = input.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String key = input.readUTF();
+                long size = input.readLong();
+                long lastModified = input.readLong();
+                String primaryType = input.readUTF();
+                String[] references = new String[input.readInt()];
+                for (int j = 0; j < references.length; j++) {
+                    references[j] = names[input.readInt()];
+                }
+                index.previousEntries.put(key, new Entry(size, lastModified, primaryType, references));
+            }
+        }
+        return index;
+    }
+
+    // false when the file isn't indexed, has changed since, or references a relocated package
+    boolean isUnaffected(Path file) throws IOException {
+        Entry entry = previousEntries.get(SourceRoot.key(sourceRoots, file, false));
+        if ((entry == null) || !entry.isUpToDate(readAttributes(file, BasicFileAttributes.class))) {
+            return false;
+        }
+        for (String reference : entry.references) {
+            if (isAffected(reference, entry.primaryType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void record(Path file, CompilationUnit compilationUnit) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // not indexed, the file will be parsed again next time
+            return;
+        }
+        entries.put(SourceRoot.key(sourceRoots, file, false),
+                    new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                              compilationUnit.getPrimaryTypeName().orElse(""), collectReferences(compilationUnit)));
+    }
+
+    // same as above, for a file that isn't parsed, from its tokens
+    void record(Path file, String source) {
+        String[] references = SourceHeader.scanReferences(source);
+        if (references == null) {
+            // not indexed, the file will be read again next time
+            return;
+        }
+        String fileName = file.getFileName().toString();
+        String primaryType = fileName.substring(0, Math.max(0, fileName.lastIndexOf('.')));
+        try {
+            BasicFileAttributes attributes = readAttributes(file, BasicFileAttributes.class);
+            entries.put(SourceRoot.key(sourceRoots, file, false),
+                        new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), primaryType,
+                                  references));
+        } catch (IOException e) {
+            // not indexed either
+        }
+    }
+
+    // entries of files modified or deleted since they were indexed are dropped
+    void save() throws IOException {
+        Map<String, Entry> savedEntries = new HashMap<>(previousEntries);
+        savedEntries.putAll(entries);
+        for (Iterator<Map.Entry<String, Entry>> it = savedEntries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> savedEntry = it.next();
+            try {
+                Path file = SourceRoot.resolveKey(sourceRoots, savedEntry.getKey(), false);
+                if (!savedEntry.getValue().isUpToDate(readAttributes(file, BasicFileAttributes.class))) {
+                    it.remove();
+                }
+            } catch (NoSuchFileException e) {
+                it.remove();
+            }
+        }
+
+        Map<String, Integer> nameIds = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (Entry entry : savedEntries.values()) {
+            for (String reference : entry.references) {
+                if (nameIds.putIfAbsent(reference, names.size()) == null) {
+                    names.add(reference);
+                }
+            }
+        }
+        Path parent = indexFile.toAbsolutePath().getParent();
+        createDirectories(parent);
+        Path temporaryFile = createTempFile(parent, indexFile.getFileName().toString(), ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(newOutputStream(temporaryFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(describeSourceRoots());
+            output.writeInt(names.size());
+            for (String name : names) {
+                output.writeUTF(name);
+            }
+            output.writeInt(savedEntries.size());
+            for (Map.Entry<String, Entry> savedEntry : savedEntries.entrySet()) {
+                Entry entry = savedEntry.getValue();
+                output.writeUTF(savedEntry.getKey());
+                output.writeLong(entry.size);
+                output.writeLong(entry.lastModified);
+                output.writeUTF(entry.primaryType);
+                output.writeInt(entry.references.length);
+                for (String reference : entry.references) {
+                    output.writeInt(nameIds.get(reference));
+                }
+            }
+        }
+        move(temporaryFile, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    // a name is affected when a relocation applies to one of its prefixes, like in FileRelocator
+    private boolean isAffected(String name, String primaryType) {
+        Boolean affected = affectedNames.get(name);
+        if (affected == null) {
+            affected = (relocations.find(name, "") != null) || isResolvedClassPackage(name);
+            affectedNames.put(name, affected);
+        }
+        return affected || (classRelocations && (relocations.find(name, primaryType) != null));
+    }
+
+    // a resolved class may be referenced by its simple name from its package, or from a file importing it
+    private boolean isResolvedClassPackage(String name) {
+        for (String packageName : resolvedClassPackages) {
+            if (name.equals(packageName) || name.startsWith(packageName + '.')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the entries are keyed by source root, so they are only valid for the same source directories
+    private String describeSourceRoots() {
+        StringBuilder description = new StringBuilder();
+        for (SourceRoot sourceRoot : sourceRoots) {
+            description.append(sourceRoot.getDirectory().toAbsolutePath().normalize()).append('\n');
+        }
+        return description.toString();
+    }
+
+    // the qualified names walked by FileRelocator, without their last segment which is a type or a member,
+    // and without the names that are a prefix of another one
+    static String[] collectReferences(CompilationUnit compilationUnit) {
+        TreeSet<String> names = new TreeSet<>();
+        compilationUnit.getPackageDeclaration().map(PackageDeclaration::getNameAsString).ifPresent(names::add);
+        for (ImportDeclaration importDeclaration : compilationUnit.getImports()) {
+            names.add(importDeclaration.getNameAsString());
+        }
+        compilationUnit.accept(new VoidVisitorAdapter<Void>() {
+            @Override public void visit(Name n, Void arg) {
+                if (NAME_CHAIN.isTop(n)) {
+                    addQualifier(n, NAME_CHAIN, names);
+                }
+                super.visit(n, arg);
+            }
+
+            @Override public void visit(ClassOrInterfaceType n, Void arg) {
+                if (TYPE_CHAIN.isTop(n)) {
+                    addQualifier(n, TYPE_CHAIN, names);
+                }
+                super.visit(n, arg);
+            }
+
+            @Override public void visit(NameExpr n, Void arg) {
+                if (EXPRESSION_CHAIN.isTop(n)) {
+                    addQualifier(n, EXPRESSION_CHAIN, names);
+                }
+                super.visit(n, arg);
+            }
+
+            @Override public void visit(FieldAccessExpr n, Void arg) {
+                if (EXPRESSION_CHAIN.isTop(n)) {
+                    addQualifier(n, EXPRESSION_CHAIN, names);
+                }
+                super.visit(n, arg);
+            }
+        }, null);
+        return withoutPrefixes(names);
+    }
+
+    static String[] withoutPrefixes(TreeSet<String> names) {
+        List<String> references = new ArrayList<>();
+        String previous = null;
+        for (String name : names.descendingSet()) {
+            if ((previous == null) || !previous.startsWith(name + '.')) {
+                references.add(name);
+            }
+            previous = name;
+        }
+        return references.toArray(new String[0]);
+    }
+
+    private static <N extends Node> void addQualifier(N node, FileRelocator.Chain<N> chain, Set<String> names) {
+        Node qualifier = chain.getQualifier(node);
+        if ((qualifier != null) && chain.isSegment(qualifier)) {
+            String name = getQualifiedName(chain.cast(qualifier), chain);
+            if (name != null) {
+                names.add(name);
+            }
+        }
+    }
+
+    private static <N extends Node> String getQualifiedName(N node, FileRelocator.Chain<N> chain) {
+        Node qualifier = chain.getQualifier(node);
+        if (qualifier == null) {
+            return chain.getIdentifier(node);
+        }
+        if (!chain.isSegment(qualifier)) {
+            return null;
+        }
+        String qualifierName = getQualifiedName(chain.cast(qualifier), chain);
+        return (qualifierName == null) ? null : qualifierName + '.' + chain.getIdentifier(node);
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String primaryType;
+        private final String[] references;
+
+        private Entry(long size, long lastModified, String primaryType, String[] references) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.primaryType = primaryType;
+            this.references = references;
+        }
+
+        private boolean isUpToDate(BasicFileAttributes attributes) {
+            return (attributes.size() == size) && (attributes.lastModifiedTime().toMillis() == lastModified);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package fr.duminy.relocator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableList;
+
+class RelocationIndex {
+    private final Node root = new Node("", 0);
+    private final List<Relocation> relocations;
+    private final boolean hasPatterns;
+    private final Map<Relocation, List<Relocation>> origins;
+
+    RelocationIndex(List<Relocation> relocations) {
+        this(relocations, emptyMap());
+    }
+
+    RelocationIndex(List<Relocation> relocations, Map<Relocation, List<Relocation>> origins) {
+        this.relocations = unmodifiableList(new ArrayList<>(relocations));
+        this.origins = origins;
+        boolean hasPatterns = false;
+        for (int rank = 0; rank < relocations.size(); rank++) {
+            Relocation relocation = relocations.get(rank);
+            String sourcePackage = relocation.getSourcePackage();
+            if (sourcePackage.isEmpty()) {
+                continue;
+            }
+
+            getOrCreateNode(sourcePackage).addRelocation(relocation, rank);
+            if (relocation instanceof PatternRelocation) {
+                hasPatterns = true;
+                for (String exclude : ((PatternRelocation) relocation).getExcludes()) {
+                    getOrCreateNode(exclude).addExclusion(relocation);
+                }
+            }
+        }
+        this.hasPatterns = hasPatterns;
+        if (hasPatterns) {
+            determinize(root);
+        }
+    }
+
+    Relocation find(String name, String classSimpleName) {
+        Matcher matcher = matcher(classSimpleName);
+        int start = 0;
+        while (start <= name.length()) {
+            int end = segmentEnd(name, start);
+            if (!matcher.next(name, start, end)) {
+                break;
+            }
+            start = end + 1;
+        }
+        return matcher.getRelocation();
+    }
+
+    Matcher matcher(String classSimpleName) {
+        Matcher matcher = new Matcher(this);
+        matcher.reset(classSimpleName);
+        return matcher;
+    }
+
+    List<Relocation> getRelocations() {
+        return relocations;
+    }
+
+    // the relocations given by the user that a relocation found by this index comes from
+    List<Relocation> getOrigins(Relocation relocation) {
+        if (relocation instanceof PatternRelocation.Resolved) {
+            return singletonList(((PatternRelocation.Resolved) relocation).getPattern());
+        }
+        List<Relocation> result = origins.get(relocation);
+        return (result == null) ? singletonList(relocation) : result;
+    }
+
+    private Node getOrCreateNode(String pattern) {
+        Node node = root;
+        int start = 0;
+        while (start <= pattern.length()) {
+            int end = segmentEnd(pattern, start);
+            node = PatternRelocation.WILDCARD.regionMatches(0, pattern, start, end - start) ?
+                node.getOrCreateWildcard() : node.getOrCreateChild(pattern, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    // a segment matching both an exact child and the wildcard child leads to a node merging both subtrees,
+    // so that a name is matched by walking a single path whatever the number of patterns
+    private static void determinize(Node node) {
+        if (node.wildcard != null) {
+            for (Node child : node.children) {
+                if (child != null) {
+                    merge(child, node.wildcard);
+                }
+            }
+        }
+        for (Node child : node.children) {
+            if (child != null) {
+                determinize(child);
+            }
+        }
+        if (node.wildcard != null) {
+            determinize(node.wildcard);
+        }
+    }
+
+    private static void merge(Node target, Node source) {
+        for (int i = 0; i < source.relocationCount; i++) {
+            target.addRelocation(source.relocations[i], source.ranks[i]);
+        }
+        for (int i = 0; i < source.exclusionCount; i++) {
+            target.addExclusion(source.exclusions[i]);
+        }
+        for (Node child : source.children) {
+            if (child != null) {
+                merge(target.getOrCreateChild(child.segment, 0, child.segment.length()), child);
+            }
+        }
+        if (source.wildcard != null) {
+            merge(target.getOrCreateWildcard(), source.wildcard);
+        }
+    }
+
+    static boolean doesNotRelocateClass(Relocation relocation, String classSimpleName) {
+        return (relocation instanceof ClassRelocation) && !Objects
+            .equals(((ClassRelocation) relocation).getSourceClass(), classSimpleName);
+    }
+
+    private static int segmentEnd(String name, int start) {
+        int end = name.indexOf('.', start);
+        return (end < 0) ? name.length() : end;
+    }
+
+    private static int hash(String name, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        return hash;
+    }
+
+    static class Matcher {
+        private final RelocationIndex index;
+        private final StringBuilder path = new StringBuilder();
+        private String classSimpleName;
+        private Node node;
+        private int depth;
+        private int[] pathEnds = new int[8];
+        private int[] segmentEnds = new int[8];
+        private Relocation[] candidates = new Relocation[4];
+        private int[] candidateRanks = new int[4];
+        private int[] candidateDepths = new int[4];
+        private int candidateCount;
+
+        private Matcher(RelocationIndex index) {
+            this.index = index;
+        }
+
+        void reset(String classSimpleName) {
+            this.classSimpleName = classSimpleName;
+            node = index.root;
+            depth = 0;
+            candidateCount = 0;
+            path.setLength(0);
+        }
+
+        boolean next(String name, int start, int end) {
+            return next(name, start, end, classSimpleName);
+        }
+
+        boolean next(String name, int start, int end, String classSimpleName) {
+            if (node == null) {
+                return false;
+            }
+            node = node.getChild(name, start, end);
+            if (node == null) {
+                return false;
+            }
+
+            if (depth == segmentEnds.length) {
+                segmentEnds = Arrays.copyOf(segmentEnds, depth * 2);
+                pathEnds = Arrays.copyOf(pathEnds, depth * 2);
+            }
+            if (index.hasPatterns) {
+                if (depth > 0) {
+                    path.append('.');
+                }
+                path.append(name, start, end);
+                pathEnds[depth] = path.length();
+            }
+            segmentEnds[depth] = end;
+            depth++;
+            for (int i = 0; i < node.relocationCount; i++) {
+                if (!doesNotRelocateClass(node.relocations[i], classSimpleName)) {
+                    addCandidate(node.relocations[i], node.ranks[i]);
+                }
+            }
+            for (int i = 0; i < node.exclusionCount; i++) {
+                removeCandidate(node.exclusions[i]);
+            }
+            return true;
+        }
+
+        Relocation getRelocation() {
+            int best = findBest();
+            if (best < 0) {
+                return null;
+            }
+            Relocation relocation = candidates[best];
+            if (relocation instanceof PatternRelocation) {
+                relocation = ((PatternRelocation) relocation).resolve(
+                    path.substring(0, pathEnds[candidateDepths[best] - 1]));
+            }
+            return relocation;
+        }
+
+        int getDepth() {
+            int best = findBest();
+            return (best < 0) ? 0 : candidateDepths[best];
+        }
+
+        int getEnd() {
+            int best = findBest();
+            return (best < 0) ? -1 : segmentEnds[candidateDepths[best] - 1];
+        }
+
+        private int findBest() {
+            int best = -1;
+            for (int i = 0; i < candidateCount; i++) {
+                if ((best < 0) || (candidateRanks[i] < candidateRanks[best])) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        private void addCandidate(Relocation relocation, int rank) {
+            if (candidateCount == candidates.length) {
+                candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                candidateRanks = Arrays.copyOf(candidateRanks, candidates.length);
+                candidateDepths = Arrays.copyOf(candidateDepths, candidates.length);
+            }
+            candidates[candidateCount] = relocation;
+            candidateRanks[candidateCount] = rank;
+            candidateDepths[candidateCount] = depth;
+            candidateCount++;
+        }
+
+        private void removeCandidate(Relocation relocation) {
+            for (int i = candidateCount - 1; i >= 0; i--) {
+                if (candidates[i] == relocation) {
+                    candidateCount--;
+                    candidates[i] = candidates[candidateCount];
+                    candidateRanks[i] = candidateRanks[candidateCount];
+                    candidateDepths[i] = candidateDepths[candidateCount];
+                }
+            }
+        }
+    }
+
+    private static class Node {
+        private final String segment;
+        private final int hash;
+        private Node[] children = new Node[0];
+        private int childCount;
+        private Node wildcard;
+        private Relocation[] relocations = new Relocation[0];
+        private int[] ranks = new int[0];
+        private int relocationCount;
+        private Relocation[] exclusions = new Relocation[0];
+        private int exclusionCount;
+
+        private Node(String segment, int hash) {
+            this.segment = segment;
+            this.hash = hash;
+        }
+
+        // by convention, a segment starting with an upper case letter is a class name and not a package name
+        private Node getChild(String name, int start, int end) {
+            Node child = getExactChild(name, start, end);
+            if ((child == null) && (wildcard != null) && (end > start) && !Character.isUpperCase(name.charAt(start))) {
+                child = wildcard;
+            }
+            return child;
+        }
+
+        private Node getExactChild(String name, int start, int end) {
+            if (childCount == 0) {
+                return null;
+            }
+            int hash = hash(name, start, end);
+            int mask = children.length - 1;
+            for (int i = spread(hash) & mask; children[i] != null; i = (i + 1) & mask) {
+                Node child = children[i];
+                if ((child.hash == hash) && child.matches(name, start, end)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        private Node getOrCreateChild(String name, int start, int end) {
+            Node child = getExactChild(name, start, end);
+            if (child == null) {
+                if ((childCount + 1) * 2 > children.length) {
+                    resize();
+                }
+                child = new Node(name.substring(start, end), hash(name, start, end));
+                put(children, child);
+                childCount++;
+            }
+            return child;
+        }
+
+        private Node getOrCreateWildcard() {
+            if (wildcard == null) {
+                wildcard = new Node(PatternRelocation.WILDCARD, 0);
+            }
+            return wildcard;
+        }
+
+        private boolean matches(String name, int start, int end) {
+            return (segment.length() == end - start) && segment.regionMatches(0, name, start, end - start);
+        }
+
+        private void resize() {
+            Node[] newChildren = new Node[Math.max(4, children.length * 2)];
+            for (Node child : children) {
+                if (child != null) {
+                    put(newChildren, child);
+                }
+            }
+            children = newChildren;
+        }
+
+        private static void put(Node[] table, Node node) {
+            int mask = table.length - 1;
+            int i = spread(node.hash) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private void addRelocation(Relocation relocation, int rank) {
+            for (int i = 0; i < relocationCount; i++) {
+                if (relocations[i] == relocation) {
+                    return;
+                }
+            }
+            if (relocationCount == relocations.length) {
+                relocations = Arrays.copyOf(relocations, Math.max(1, relocationCount * 2));
+                ranks = Arrays.copyOf(ranks, relocations.length);
+            }
+            relocations[relocationCount] = relocation;
+            ranks[relocationCount] = rank;
+            relocationCount++;
+        }
+
+        private void addExclusion(Relocation relocation) {
+            for (int i = 0; i < exclusionCount; i++) {
+                if (exclusions[i] == relocation) {
+                    return;
+                }
+            }
+            if (exclusionCount == exclusions.length) {
+                exclusions = Arrays.copyOf(exclusions, Math.max(1, exclusionCount * 2));
+            }
+            exclusions[exclusionCount++] = relocation;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package fr.duminy.relocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// append-only record of the files committed by a run, so that an interrupted run can be resumed
+class RelocationJournal implements AutoCloseable {
+    private static final String FINGERPRINT = "fingerprint ";
+
+    private final Path journalFile;
+    private final Path baseDirectory;
+    private final FileChannel channel;
+    private final Map<String, Entry> entriesByFile = new ConcurrentHashMap<>();
+    private final Map<String, Entry> entriesByOutput = new ConcurrentHashMap<>();
+    private final Queue<Record> pendingRecords = new ConcurrentLinkedQueue<>();
+
+    private RelocationJournal(Path journalFile, Path baseDirectory, FileChannel channel) {
+        this.journalFile = journalFile;
+        this.baseDirectory = baseDirectory.toAbsolutePath();
+        this.channel = channel;
+    }
+
+    static RelocationJournal open(Path journalFile, Path baseDirectory, List<Relocation> relocations,
+                                  boolean classResolution) throws IOException {
+        Path parent = journalFile.toAbsolutePath().getParent();
+        createDirectories(parent);
+        String fingerprint = FINGERPRINT + RelocationManifest.fingerprint(relocations, classResolution) + '\n';
+        RelocationJournal journal = new RelocationJournal(journalFile, baseDirectory,
+                                                          FileChannel.open(journalFile, CREATE, READ, WRITE));
+        try {
+            String content = new String(readAllBytes(journalFile), UTF_8);
+            if (!content.startsWith(fingerprint)) {
+                // written for other relocations, the run starts over
+                journal.channel.truncate(0);
+                journal.write(fingerprint);
+                return journal;
+            }
+
+            // a line interrupted while being written is dropped
+            int end = content.lastIndexOf('\n') + 1;
+            for (String line : content.substring(fingerprint.length(), end).split("\n")) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    Entry entry = new Entry(fields[0], fields[1], fields[2], fields[3]);
+                    journal.entriesByFile.put(entry.file, entry);
+                    journal.entriesByOutput.put(entry.output, entry);
+                }
+            }
+            journal.channel.truncate(content.substring(0, end).getBytes(UTF_8).length);
+            journal.channel.position(journal.channel.size());
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    // the output of a file committed by a previous run and unchanged since, or null
+    Path getFinishedOutput(Path file) throws IOException {
+        String key = key(file);
+        Entry entry = entriesByOutput.get(key);
+        if ((entry != null) && entry.hashAfter.equals(RelocationManifest.hash(file))) {
+            // already relocated in place
+            return file;
+        }
+        entry = entriesByFile.get(key);
+        if ((entry == null) || !entry.hashBefore.equals(RelocationManifest.hash(file))) {
+            return null;
+        }
+        Path output = baseDirectory.resolve(entry.output);
+        return (exists(output) && entry.hashAfter.equals(RelocationManifest.hash(output))) ? output : null;
+    }
+
+    // called before the file is committed, while it still has its original content, with the file holding the content
+    // of its output until then
+    void add(Path file, Path output, Path content) throws IOException {
+        String hashBefore = RelocationManifest.hash(file);
+        String hashAfter = content.equals(file) ? hashBefore : RelocationManifest.hash(content);
+        pendingRecords.add(new Record(file, output, hashBefore, hashAfter));
+    }
+
+    // called before the pending files are committed : if the commit doesn't complete, the hashes of the files tell
+    // which entries were not published
+    void checkpoint() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        List<Record> records = new ArrayList<>();
+        for (Record record; (record = pendingRecords.poll()) != null; ) {
+            records.add(record);
+        }
+        for (Record record : records) {
+            lines.append(record.hashBefore).append('\t').append(record.hashAfter).append('\t').append(key(record.file))
+                 .append('\t').append(key(record.output)).append('\n');
+        }
+        if (lines.length() > 0) {
+            write(lines.toString());
+            channel.force(false);
+        }
+    }
+
+    void delete() throws IOException {
+        close();
+        deleteIfExists(journalFile);
+    }
+
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+
+    private void write(String lines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private String key(Path file) {
+        return baseDirectory.relativize(file.toAbsolutePath()).toString().replace('\\', '/');
+    }
+
+    private static class Entry {
+        private final String hashBefore;
+        private final String hashAfter;
+        private final String file;
+        private final String output;
+
+        private Entry(String hashBefore, String hashAfter, String file, String output) {
+            this.hashBefore = hashBefore;
+            this.hashAfter = hashAfter;
+            this.file = file;
+            this.output = output;
+        }
+    }
+
+    private static class Record {
+        private final Path file;
+        private final Path output;
+        private final String hashBefore;
+        private final String hashAfter;
+
+        private Record(Path file, Path output, String hashBefore, String hashAfter) {
+            this.file = file;
+            this.output = output;
+            this.hashBefore = hashBefore;
+            this.hashAfter = hashAfter;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package fr.duminy.relocator;
+
+import java.nio.file.Path;
+
+@SuppressWarnings("unused")
+public interface RelocationListener {
+    RelocationListener NO_OP = new RelocationListener() {
+    };
+
+    default void phaseCompleted(Phase phase, Path file, long durationNanos) {
+    }
+
+    default void fileScanned(Path file) {
+    }
+
+    default void fileSkipped(Path file) {
+    }
+
+    default void fileModified(Path file, Path output) {
+    }
+
+    default void bytesRead(Path file, long count) {
+    }
+
+    default void bytesWritten(Path file, long count) {
+    }
+
+    default void relocationApplied(Path file, Relocation relocation) {
+    }
+}
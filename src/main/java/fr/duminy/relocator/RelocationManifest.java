@@ -0,0 +1,194 @@
+package fr.duminy.relocator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+class RelocationManifest {
+    private static final String FINGERPRINT = "fingerprint ";
+
+    private final Path manifestFile;
+    private final List<SourceRoot> sourceRoots;
+    private final String fingerprint;
+    private final Map<String, Entry> previousEntries = new ConcurrentHashMap<>();
+    // also read for other relocations, so that the outputs they published can be replaced
+    private final Map<String, String> previousOutputs = new ConcurrentHashMap<>();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private RelocationManifest(Path manifestFile, List<SourceRoot> sourceRoots, String fingerprint) {
+        this.manifestFile = manifestFile;
+        this.sourceRoots = new ArrayList<>(sourceRoots);
+        this.fingerprint = fingerprint;
+    }
+
+    static RelocationManifest load(Path manifestFile, List<SourceRoot> sourceRoots, List<Relocation> relocations,
+                                   boolean classResolution) throws IOException {
+        RelocationManifest manifest = new RelocationManifest(manifestFile, sourceRoots,
+                                                             fingerprint(relocations, classResolution, sourceRoots));
+        if (!exists(manifestFile)) {
+            return manifest;
+        }
+
+        try (BufferedReader reader = newBufferedReader(manifestFile, UTF_8)) {
+            String line = reader.readLine();
+            if ((line == null) || !line.startsWith(FINGERPRINT)) {
+                return manifest;
+            }
+            boolean sameRelocations = line.equals(FINGERPRINT + manifest.fingerprint);
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 4) {
+                    String output = (fields.length > 4) ? fields[4] : null;
+                    if (output != null) {
+                        manifest.previousOutputs.put(fields[3], output);
+                    }
+                    if (sameRelocations) {
+                        Entry entry = new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                                output);
+                        manifest.previousEntries.put(fields[3], entry);
+                    }
+                }
+            }
+        }
+        return manifest;
+    }
+
+    boolean isUpToDate(Path file) throws IOException {
+        String key = SourceRoot.key(sourceRoots, file, false);
+        Entry previousEntry = previousEntries.get(key);
+        if (previousEntry == null) {
+            return false;
+        }
+
+        BasicFileAttributes attributes = readAttributes(file, BasicFileAttributes.class);
+        if (attributes.size() != previousEntry.size) {
+            return false;
+        }
+        if ((previousEntry.output != null) && !exists(SourceRoot.resolveKey(sourceRoots, previousEntry.output, true))) {
+            return false;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if ((lastModified != previousEntry.lastModified) && !previousEntry.hash.equals(hash(file))) {
+            return false;
+        }
+        entries.put(key, new Entry(previousEntry.hash, previousEntry.size, lastModified, previousEntry.output));
+        return true;
+    }
+
+    // the output published for the file by the previous run, if it's not the file itself
+    Path getPreviousOutput(Path file) {
+        String output = previousOutputs.get(SourceRoot.key(sourceRoots, file, false));
+        return (output == null) ? null : SourceRoot.resolveKey(sourceRoots, output, true);
+    }
+
+    void record(Path file, Path output) throws IOException {
+        BasicFileAttributes attributes = readAttributes(file, BasicFileAttributes.class);
+        String outputKey = file.equals(output) ? null : SourceRoot.key(sourceRoots, output, true);
+        entries.put(SourceRoot.key(sourceRoots, file, false),
+                    new Entry(hash(file), attributes.size(), attributes.lastModifiedTime().toMillis(), outputKey));
+    }
+
+    void save() throws IOException {
+        Path parent = manifestFile.toAbsolutePath().getParent();
+        createDirectories(parent);
+        Path temporaryFile = createTempFile(parent, manifestFile.getFileName().toString(), ".tmp");
+        try (Writer writer = newBufferedWriter(temporaryFile, UTF_8)) {
+            writer.write(FINGERPRINT + fingerprint + '\n');
+            for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(value.hash + '\t' + value.size + '\t' + value.lastModified + '\t' + entry.getKey());
+                writer.write((value.output == null) ? "\n" : '\t' + value.output + '\n');
+            }
+        }
+        move(temporaryFile, manifestFile, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    // the entries are keyed by source root, so they are only valid for the same source and output directories
+    static String fingerprint(List<Relocation> relocations, boolean classResolution, List<SourceRoot> sourceRoots) {
+        MessageDigest digest = newDigest();
+        for (SourceRoot sourceRoot : sourceRoots) {
+            String description = "source root " + sourceRoot.getDirectory().toAbsolutePath().normalize() + ' '
+                                 + (sourceRoot.isInPlace() ? "" :
+                                    sourceRoot.getOutputDirectory().toAbsolutePath().normalize()) + '\n';
+            digest.update(description.getBytes(UTF_8));
+        }
+        digest.update(fingerprint(relocations, classResolution).getBytes(UTF_8));
+        return toHex(digest.digest());
+    }
+
+    static String fingerprint(List<Relocation> relocations, boolean classResolution) {
+        MessageDigest digest = newDigest();
+        if (classResolution) {
+            digest.update("class resolution\n".getBytes(UTF_8));
+        }
+        for (Relocation relocation : relocations) {
+            String qualifier = "";
+            if (relocation instanceof ClassRelocation) {
+                qualifier = ((ClassRelocation) relocation).getSourceClass();
+            } else if (relocation instanceof PatternRelocation) {
+                qualifier = String.join(",", ((PatternRelocation) relocation).getExcludes());
+            }
+            String description = relocation.getClass().getName() + ' ' + relocation.getSourcePackage() + ' '
+                                 + qualifier + ' ' + relocation.getTargetPackage() + '\n';
+            digest.update(description.getBytes(UTF_8));
+        }
+        return toHex(digest.digest());
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream input = newInputStream(file)) {
+            for (int read; (read = input.read(buffer)) >= 0; ) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RelocatorException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class Entry {
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+        private final String output;
+
+        private Entry(String hash, long size, long lastModified, String output) {
+            this.hash = Objects.requireNonNull(hash);
+            this.size = size;
+            this.lastModified = lastModified;
+            this.output = output;
+        }
+    }
+}
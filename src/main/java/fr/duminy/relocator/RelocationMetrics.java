@@ -0,0 +1,83 @@
+package fr.duminy.relocator;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+@SuppressWarnings("WeakerAccess")
+public class RelocationMetrics implements RelocationListener {
+    private final Map<Phase, LongAdder> phaseDurations = new EnumMap<>(Phase.class);
+    private final LongAdder scannedFiles = new LongAdder();
+    private final LongAdder skippedFiles = new LongAdder();
+    private final LongAdder modifiedFiles = new LongAdder();
+    private final LongAdder readBytes = new LongAdder();
+    private final LongAdder writtenBytes = new LongAdder();
+    private final Map<Relocation, LongAdder> relocationHits = new ConcurrentHashMap<>();
+
+    public RelocationMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseDurations.put(phase, new LongAdder());
+        }
+    }
+
+    @Override public void phaseCompleted(Phase phase, Path file, long durationNanos) {
+        phaseDurations.get(phase).add(durationNanos);
+    }
+
+    @Override public void fileScanned(Path file) {
+        scannedFiles.increment();
+    }
+
+    @Override public void fileSkipped(Path file) {
+        skippedFiles.increment();
+    }
+
+    @Override public void fileModified(Path file, Path output) {
+        modifiedFiles.increment();
+    }
+
+    @Override public void bytesRead(Path file, long count) {
+        readBytes.add(count);
+    }
+
+    @Override public void bytesWritten(Path file, long count) {
+        writtenBytes.add(count);
+    }
+
+    @Override public void relocationApplied(Path file, Relocation relocation) {
+        relocationHits.computeIfAbsent(relocation, key -> new LongAdder()).increment();
+    }
+
+    public long getPhaseDurationNanos(Phase phase) {
+        return phaseDurations.get(phase).sum();
+    }
+
+    public long getScannedFiles() {
+        return scannedFiles.sum();
+    }
+
+    public long getSkippedFiles() {
+        return skippedFiles.sum();
+    }
+
+    public long getModifiedFiles() {
+        return modifiedFiles.sum();
+    }
+
+    public long getReadBytes() {
+        return readBytes.sum();
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    public Map<Relocation, Long> getRelocationHits() {
+        Map<Relocation, Long> hits = new LinkedHashMap<>();
+        relocationHits.forEach((relocation, count) -> hits.put(relocation, count.sum()));
+        return hits;
+    }
+}
@@ -0,0 +1,344 @@
+package fr.duminy.relocator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static java.util.Collections.unmodifiableList;
+
+@SuppressWarnings("WeakerAccess")
+public class RelocationPlan {
+    private static final Comparator<Rule> BY_SPECIFICITY = Comparator
+        .comparingInt((Rule rule) -> -segmentCount(rule.source))
+        .thenComparing(rule -> rule.sourceClass == null)
+        .thenComparingInt(rule -> (rule.relocation instanceof PatternRelocation) ?
+            ((PatternRelocation) rule.relocation).getWildcardCount() : 0);
+
+    private final List<List<Rule>> stages = new ArrayList<>();
+    private final List<String> problems = new ArrayList<>();
+    // the relocations of the stages composed into each compiled relocation
+    private final Map<Relocation, List<Relocation>> origins = new IdentityHashMap<>();
+
+    public RelocationPlan(List<? extends Collection<? extends Relocation>> stages) {
+        for (int stage = 0; stage < stages.size(); stage++) {
+            List<Rule> rules = validate(stage, stages.get(stage));
+            if (!rules.isEmpty()) {
+                rules.sort(BY_SPECIFICITY);
+                this.stages.add(rules);
+            }
+        }
+        if (this.stages.size() > 1) {
+            for (List<Rule> rules : this.stages) {
+                for (Rule rule : rules) {
+                    if (rule.relocation instanceof PatternRelocation) {
+                        problems.add(describe(rule.relocation) + " can't be composed with other stages");
+                    }
+                }
+            }
+        }
+    }
+
+    public List<String> getProblems() {
+        return unmodifiableList(problems);
+    }
+
+    public List<Relocation> compile() {
+        if (!problems.isEmpty()) {
+            throw new RelocatorException("Invalid relocation plan : " + problems);
+        }
+        origins.clear();
+        if (stages.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (stages.size() == 1) {
+            List<Relocation> relocations = new ArrayList<>();
+            stages.get(0).forEach(rule -> relocations.add(rule.relocation));
+            return relocations;
+        }
+
+        Set<Key> candidates = new LinkedHashSet<>();
+        Set<String> sourceClasses = new LinkedHashSet<>();
+        for (List<Rule> rules : stages) {
+            for (Rule rule : rules) {
+                if (rule.sourceClass != null) {
+                    sourceClasses.add(rule.sourceClass);
+                }
+            }
+        }
+        for (int stage = 0; stage < stages.size(); stage++) {
+            List<Key> previousCandidates = new ArrayList<>(candidates);
+            for (Rule rule : stages.get(stage)) {
+                candidates.add(new Key(rule.source, rule.sourceClass));
+                for (Key candidate : previousCandidates) {
+                    if ((candidate.sourceClass != null) && (rule.sourceClass != null)
+                        && !candidate.sourceClass.equals(rule.sourceClass)) {
+                        continue;
+                    }
+                    String sourceClass = (rule.sourceClass == null) ? candidate.sourceClass : rule.sourceClass;
+                    String target = apply(candidate.source, sourceClass, stage, null);
+                    String suffix = suffix(rule.source, target);
+                    if (suffix != null) {
+                        candidates.add(new Key(candidate.source + suffix, sourceClass));
+                    }
+                }
+            }
+        }
+
+        Map<Key, String> composed = new LinkedHashMap<>();
+        Map<Key, List<Relocation>> applied = new LinkedHashMap<>();
+        for (Key candidate : candidates) {
+            List<Relocation> relocations = new ArrayList<>();
+            String target = apply(candidate.source, candidate.sourceClass, stages.size(), relocations);
+            composed.put(candidate, target);
+            applied.put(candidate, relocations);
+            if (candidate.sourceClass == null) {
+                for (String sourceClass : sourceClasses) {
+                    List<Relocation> classRelocations = new ArrayList<>();
+                    String classTarget = apply(candidate.source, sourceClass, stages.size(), classRelocations);
+                    Key key = new Key(candidate.source, sourceClass);
+                    if (!classTarget.equals(target) && (composed.putIfAbsent(key, classTarget) == null)) {
+                        applied.put(key, classRelocations);
+                    }
+                }
+            }
+        }
+
+        List<Rule> rules = new ArrayList<>();
+        composed.forEach((key, target) -> {
+            if (!target.equals(key.source) || isCovered(key, composed.keySet())) {
+                Relocation relocation = (key.sourceClass == null) ? new PackageRelocation(key.source, target) :
+                    new ClassRelocation(key.source, key.sourceClass, target);
+                rules.add(new Rule(relocation));
+                origins.put(relocation, unmodifiableList(applied.get(key)));
+            }
+        });
+        rules.sort(BY_SPECIFICITY);
+        List<Relocation> relocations = new ArrayList<>();
+        rules.forEach(rule -> relocations.add(rule.relocation));
+        return relocations;
+    }
+
+    // the relocations of the stages that were applied are added to applied, unless it's null
+    // the relocations registered in the stages that a compiled relocation comes from, filled by compile
+    Map<Relocation, List<Relocation>> getOrigins() {
+        return origins;
+    }
+
+    private String apply(String name, String sourceClass, int stageCount, List<Relocation> applied) {
+        for (int stage = 0; stage < stageCount; stage++) {
+            for (Rule rule : stages.get(stage)) {
+                if ((rule.sourceClass != null) && !rule.sourceClass.equals(sourceClass)) {
+                    continue;
+                }
+                String suffix = suffix(name, rule.source);
+                if (suffix != null) {
+                    name = rule.target + suffix;
+                    if (applied != null) {
+                        applied.add(rule.relocation);
+                    }
+                    break;
+                }
+            }
+        }
+        return name;
+    }
+
+    private static boolean isCovered(Key key, Set<Key> keys) {
+        for (Key other : keys) {
+            if (!other.equals(key) && ((other.sourceClass == null) || other.sourceClass.equals(key.sourceClass))
+                && (suffix(key.source, other.source) != null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String suffix(String name, String prefix) {
+        if (name.equals(prefix)) {
+            return "";
+        }
+        if (name.startsWith(prefix) && (name.charAt(prefix.length()) == '.')) {
+            return name.substring(prefix.length());
+        }
+        return null;
+    }
+
+    private List<Rule> validate(int stage, Collection<? extends Relocation> relocations) {
+        Map<Key, Rule> rules = new LinkedHashMap<>();
+        for (Relocation relocation : relocations) {
+            String description = "stage " + stage + " : " + describe(relocation);
+            if (relocation instanceof PatternRelocation) {
+                String problem = validate((PatternRelocation) relocation);
+                if (problem != null) {
+                    problems.add(description + problem);
+                    continue;
+                }
+            } else if (!isQualifiedName(relocation.getSourcePackage())) {
+                problems.add(description + " has an invalid source package");
+                continue;
+            }
+            if (!(relocation instanceof PatternRelocation) && !isQualifiedName(relocation.getTargetPackage())) {
+                problems.add(description + " has an invalid target package");
+                continue;
+            }
+            Rule rule = new Rule(relocation);
+            if ((rule.sourceClass != null) && !isIdentifier(rule.sourceClass)) {
+                problems.add(description + " has an invalid source class");
+                continue;
+            }
+
+            Rule previous = rules.putIfAbsent(new Key(rule.source, rule.sourceClass), rule);
+            if ((previous != null) && !previous.target.equals(rule.target)) {
+                problems.add(description + " conflicts with " + describe(previous.relocation));
+            }
+        }
+        return new ArrayList<>(rules.values());
+    }
+
+    private static String validate(PatternRelocation relocation) {
+        String source = relocation.getSourcePackage();
+        String[] sourceSegments = (source == null) ? new String[0] : source.split("\\.", -1);
+        if (!isPattern(sourceSegments)) {
+            return " has an invalid source pattern";
+        }
+        String target = relocation.getTargetPackage();
+        if (target == null) {
+            return " has an invalid target package";
+        }
+        int wildcardCount = relocation.getWildcardCount();
+        StringBuilder targetName = new StringBuilder();
+        for (int i = 0; i < target.length(); i++) {
+            int end = i + 1;
+            while ((target.charAt(i) == '$') && (end < target.length()) && Character.isDigit(target.charAt(end))) {
+                end++;
+            }
+            if (end > i + 1) {
+                int capture = Integer.parseInt(target.substring(i + 1, Math.min(end, i + 10)));
+                if ((capture < 1) || (capture > wildcardCount)) {
+                    return " refers to a missing capture in its target package";
+                }
+                targetName.append('x');
+                i = end - 1;
+            } else {
+                targetName.append(target.charAt(i));
+            }
+        }
+        if (!isQualifiedName(targetName.toString())) {
+            return " has an invalid target package";
+        }
+        for (String exclude : relocation.getExcludes()) {
+            String[] excludeSegments = (exclude == null) ? new String[0] : exclude.split("\\.", -1);
+            if (!isPattern(excludeSegments) || (excludeSegments.length < sourceSegments.length)) {
+                return " has an invalid exclude " + exclude;
+            }
+            for (int i = 0; i < sourceSegments.length; i++) {
+                if (!sourceSegments[i].equals(PatternRelocation.WILDCARD)
+                    && !sourceSegments[i].equals(excludeSegments[i])) {
+                    return " has an exclude out of its source pattern : " + exclude;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPattern(String[] segments) {
+        if ((segments.length == 0) || ((segments.length == 1) && segments[0].isEmpty())) {
+            return false;
+        }
+        for (String segment : segments) {
+            if (!segment.equals(PatternRelocation.WILDCARD) && !isIdentifier(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String describe(Relocation relocation) {
+        String source = relocation.getSourcePackage();
+        if (relocation instanceof ClassRelocation) {
+            source += '.' + ((ClassRelocation) relocation).getSourceClass();
+        }
+        return source + " -> " + relocation.getTargetPackage();
+    }
+
+    private static boolean isQualifiedName(String name) {
+        if ((name == null) || name.isEmpty()) {
+            return false;
+        }
+        for (String segment : name.split("\\.", -1)) {
+            if (!isIdentifier(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIdentifier(String name) {
+        if ((name == null) || name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int segmentCount(String name) {
+        int count = 1;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) == '.') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class Rule {
+        private final Relocation relocation;
+        private final String source;
+        private final String sourceClass;
+        private final String target;
+
+        private Rule(Relocation relocation) {
+            this.relocation = relocation;
+            this.source = relocation.getSourcePackage();
+            this.sourceClass = (relocation instanceof ClassRelocation) ?
+                ((ClassRelocation) relocation).getSourceClass() : null;
+            this.target = relocation.getTargetPackage();
+        }
+    }
+
+    private static class Key {
+        private final String source;
+        private final String sourceClass;
+
+        private Key(String source, String sourceClass) {
+            this.source = source;
+            this.sourceClass = sourceClass;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return source.equals(key.source) && Objects.equals(sourceClass, key.sourceClass);
+        }
+
+        @Override public int hashCode() {
+            return Objects.hash(source, sourceClass);
+        }
+    }
+}
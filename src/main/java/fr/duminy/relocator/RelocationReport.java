@@ -0,0 +1,146 @@
+package fr.duminy.relocator;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import static java.nio.file.Files.exists;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+
+@SuppressWarnings("WeakerAccess")
+public class RelocationReport {
+    private final List<FileChange> changes;
+    private final Map<Path, List<Path>> collisions = new TreeMap<>();
+    private final Map<Relocation, Integer> relocationHits = new LinkedHashMap<>();
+    private final Map<Path, Throwable> failures;
+
+    RelocationReport(Collection<FileChange> changes, Map<Path, Path> outputs, Map<Path, Throwable> failures,
+                     Function<Relocation, List<Relocation>> origins) {
+        this.changes = unmodifiableList(new ArrayList<>(changes));
+        this.failures = unmodifiableMap(new TreeMap<>(failures));
+
+        Map<Path, List<Path>> sourcesByOutput = new TreeMap<>();
+        outputs.forEach((source, output) -> sourcesByOutput.computeIfAbsent(output.toAbsolutePath().normalize(),
+                                                                            k -> new ArrayList<>()).add(source));
+        sourcesByOutput.forEach((output, sources) -> {
+            if (sources.size() > 1) {
+                sources.sort(null);
+                collisions.put(output, unmodifiableList(sources));
+            }
+        });
+        for (FileChange change : this.changes) {
+            Path output = change.getTarget().toAbsolutePath().normalize();
+            if (change.isMoved() && !collisions.containsKey(output) && !outputs.containsKey(change.getTarget())
+                && exists(output)) {
+                List<Path> sources = new ArrayList<>();
+                sources.add(change.getSource());
+                collisions.put(output, unmodifiableList(sources));
+            }
+            for (Edit edit : change.getEdits()) {
+                for (Relocation origin : origins.apply(edit.getRelocation())) {
+                    relocationHits.merge(origin, 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    public List<FileChange> getChanges() {
+        return changes;
+    }
+
+    public List<FileChange> getMoves() {
+        List<FileChange> moves = new ArrayList<>();
+        for (FileChange change : changes) {
+            if (change.isMoved()) {
+                moves.add(change);
+            }
+        }
+        return moves;
+    }
+
+    public Map<Path, List<Path>> getCollisions() {
+        return unmodifiableMap(collisions);
+    }
+
+    public Map<Relocation, Integer> getRelocationHits() {
+        return unmodifiableMap(relocationHits);
+    }
+
+    public Map<Path, Throwable> getFailures() {
+        return failures;
+    }
+
+    public boolean isSafe() {
+        return collisions.isEmpty() && failures.isEmpty();
+    }
+
+    public static class FileChange {
+        private final Path source;
+        private final Path target;
+        private final List<Edit> edits = new ArrayList<>();
+
+        FileChange(Path source, Path target, List<TextEdit> edits) {
+            this.source = source;
+            this.target = target;
+            for (TextEdit edit : edits) {
+                this.edits.add(new Edit(edit));
+            }
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+
+        public boolean isMoved() {
+            return !source.toAbsolutePath().normalize().equals(target.toAbsolutePath().normalize());
+        }
+
+        public List<Edit> getEdits() {
+            return unmodifiableList(edits);
+        }
+    }
+
+    public static class Edit {
+        private final int line;
+        private final int column;
+        private final Relocation relocation;
+        private final String replacement;
+
+        private Edit(TextEdit edit) {
+            this.line = (edit.getRange() == null) ? -1 : edit.getRange().begin.line;
+            this.column = (edit.getRange() == null) ? -1 : edit.getRange().begin.column;
+            this.relocation = edit.getRelocation();
+            this.replacement = edit.getReplacement();
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public Relocation getRelocation() {
+            return relocation;
+        }
+
+        public String getReplacement() {
+            return replacement;
+        }
+
+        @Override public String toString() {
+            return line + ":" + column + " " + RelocationPlan.describe(relocation);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package fr.duminy.relocator;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+@SuppressWarnings("WeakerAccess")
+public class RelocationWatcher implements AutoCloseable {
+    private final FileCollector fileCollector;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, SourceRoot> watchedDirectories = new ConcurrentHashMap<>();
+    private final Set<Path> outputs = ConcurrentHashMap.newKeySet();
+    private final Map<Path, byte[]> writtenDigests = new ConcurrentHashMap<>();
+    private final Map<Path, Throwable> failures = new ConcurrentHashMap<>();
+    private Function<Map<Path, SourceRoot>, Map<Path, Throwable>> relocation;
+    private AutoCloseable resources;
+    private Thread thread;
+
+    RelocationWatcher(FileCollector fileCollector, long debounceMillis, long maxDelayMillis) throws IOException {
+        this.fileCollector = fileCollector;
+        this.debounceMillis = debounceMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    public Map<Path, Throwable> getFailures() {
+        return Collections.unmodifiableMap(new HashMap<>(failures));
+    }
+
+    public boolean isRunning() {
+        return (thread != null) && thread.isAlive();
+    }
+
+    @Override public void close() throws IOException {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        watchService.close();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (resources != null) {
+            try {
+                resources.close();
+            } catch (Exception e) {
+                throw new RelocatorException(e);
+            }
+        }
+    }
+
+    void recordOutput(Path output) {
+        outputs.add(output);
+    }
+
+    void start(List<SourceRoot> sourceRoots, Function<Map<Path, SourceRoot>, Map<Path, Throwable>> relocation,
+               AutoCloseable resources) throws IOException {
+        this.relocation = relocation;
+        this.resources = resources;
+        // directories are registered before the first pass, so that no modification made meanwhile is missed
+        Map<Path, SourceRoot> files = new LinkedHashMap<>();
+        for (SourceRoot sourceRoot : sourceRoots) {
+            register(sourceRoot, sourceRoot.getDirectory().toAbsolutePath());
+            fileCollector.collectFiles(sourceRoot.getDirectory(), file -> files.put(file, sourceRoot));
+        }
+        relocate(files);
+
+        thread = new Thread(this::watch, "relocator-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Map<Path, SourceRoot> files = new LinkedHashMap<>();
+                WatchKey key = watchService.take();
+                // a burst of events (an IDE saving several files, a branch switch...) is relocated at once, but a
+                // steady stream of events (a build writing into a watched directory) doesn't delay it forever
+                long deadline = System.nanoTime() + MILLISECONDS.toNanos(maxDelayMillis);
+                do {
+                    collectChanges(key, files);
+                    long remainingMillis = NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    key = (remainingMillis > 0) ?
+                        watchService.poll(Math.min(debounceMillis, remainingMillis), MILLISECONDS) : null;
+                } while (key != null);
+                relocate(files);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void collectChanges(WatchKey key, Map<Path, SourceRoot> files) {
+        SourceRoot sourceRoot = watchedDirectories.get(key);
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (sourceRoot == null) {
+                break;
+            }
+            if (event.kind() == OVERFLOW) {
+                for (SourceRoot root : new HashSet<>(watchedDirectories.values())) {
+                    collectFiles(root, root.getDirectory().toAbsolutePath(), files);
+                }
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (isDirectory(path)) {
+                try {
+                    register(sourceRoot, path);
+                } catch (IOException e) {
+                    failures.put(path, e);
+                }
+                collectFiles(sourceRoot, path, files);
+            } else if (isRegularFile(path)) {
+                files.put(path, sourceRoot);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private void collectFiles(SourceRoot sourceRoot, Path directory, Map<Path, SourceRoot> files) {
+        try {
+            walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return isExcluded(sourceRoot, dir) ? SKIP_SUBTREE : CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        files.put(file, sourceRoot);
+                    }
+                    return CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            failures.put(directory, e);
+        }
+    }
+
+    private void register(SourceRoot sourceRoot, Path directory) throws IOException {
+        walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (isExcluded(sourceRoot, dir)) {
+                    // no watch is wasted on directories whose files are never relocated
+                    return SKIP_SUBTREE;
+                }
+                watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), sourceRoot);
+                return CONTINUE;
+            }
+        });
+    }
+
+    private boolean isExcluded(SourceRoot sourceRoot, Path directory) {
+        return fileCollector.isExcluded(sourceRoot.getDirectory().toAbsolutePath(), directory);
+    }
+
+    private void relocate(Map<Path, SourceRoot> changedFiles) {
+        Map<Path, SourceRoot> files = new LinkedHashMap<>();
+        changedFiles.forEach((file, sourceRoot) -> {
+            if (fileCollector.accepts(sourceRoot.getDirectory().toAbsolutePath(), file) && !isOwnOutput(file)) {
+                files.put(file, sourceRoot);
+            }
+        });
+        if (files.isEmpty()) {
+            return;
+        }
+
+        Map<Path, Throwable> newFailures;
+        try {
+            newFailures = relocation.apply(files);
+        } catch (RuntimeException e) {
+            newFailures = new HashMap<>();
+            for (Path file : files.keySet()) {
+                newFailures.put(file, e);
+            }
+        }
+        failures.keySet().removeAll(files.keySet());
+        failures.putAll(newFailures);
+        for (Path output : outputs) {
+            outputs.remove(output);
+            byte[] digest = digest(output);
+            if (digest != null) {
+                writtenDigests.put(output, digest);
+            }
+        }
+    }
+
+    // files written by the relocator trigger events too, they are skipped as long as nobody else modifies them
+    private boolean isOwnOutput(Path file) {
+        byte[] writtenDigest = writtenDigests.get(file);
+        return (writtenDigest != null) && Arrays.equals(writtenDigest, digest(file));
+    }
+
+    private static byte[] digest(Path file) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(readAllBytes(file));
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,74 +1,967 @@
 package fr.duminy.relocator;
 
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParserConfiguration;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.PackageDeclaration;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-import static com.github.javaparser.JavaParser.parse;
+import static com.github.javaparser.ParseStart.COMPILATION_UNIT;
+import static com.github.javaparser.Providers.provider;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.Files.*;
 import static java.nio.file.Paths.get;
-import static java.nio.file.StandardOpenOption.CREATE;
 
 @SuppressWarnings({ "unused", "WeakerAccess" })
 public class Relocator {
-    private final Path sourceDirectory;
+    private static final int ARCHIVE_BATCH_SIZE_PER_WORKER = 16;
+    private static final int JOURNAL_CHECKPOINT_FILE_COUNT = 256;
+    private static final long DEFAULT_MAX_WATCH_DELAY_MILLIS = 1000;
+
+    private final List<SourceRoot> sourceRoots = new ArrayList<>();
     private final FileRelocator fileRelocator;
     private final FileCollector fileCollector;
+    private int workerCount = 1;
+    private long memoryBudget;
+    private boolean prefilterEnabled;
+    private boolean classFilesEnabled;
+    private boolean classResolutionEnabled;
+    private Path manifestFile;
+    private Path referenceIndexFile;
+    private Path journalFile;
+    // the runs of relocate and analyze in progress, cancel stops them or the next one when there's none
+    private final List<Run> activeRuns = new ArrayList<>();
+    private boolean cancelPending;
+    private OutputMode outputMode = OutputMode.PRETTY_PRINT;
+    private ParserConfiguration parserConfiguration = new ParserConfiguration();
+    private Charset charset = UTF_8;
+    private RelocationListener listener = RelocationListener.NO_OP;
 
     public Relocator(Path sourceDirectory) {
         this(sourceDirectory, new FileRelocator(), new FileCollector());
     }
 
     Relocator(Path sourceDirectory, FileRelocator fileRelocator, FileCollector fileCollector) {
-        this.sourceDirectory = sourceDirectory;
+        sourceRoots.add(new SourceRoot(sourceDirectory, null));
         this.fileRelocator = fileRelocator;
         this.fileCollector = fileCollector;
     }
 
+    public void addSourceDirectory(Path sourceDirectory) {
+        addSourceDirectory(sourceDirectory, null);
+    }
+
+    public void addSourceDirectory(Path sourceDirectory, Path outputDirectory) {
+        sourceRoots.add(new SourceRoot(sourceDirectory, outputDirectory));
+    }
+
+    public void setOutputDirectory(Path outputDirectory) {
+        sourceRoots.set(0, sourceRoots.get(0).withOutputDirectory(outputDirectory));
+    }
+
     public void addRelocation(Relocation relocation) {
         fileRelocator.addRelocation(relocation);
     }
 
+    public void nextStage() {
+        fileRelocator.nextStage();
+    }
+
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be >= 1 : " + workerCount);
+        }
+        this.workerCount = workerCount;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget must be >= 0 : " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void setPrefilterEnabled(boolean prefilterEnabled) {
+        this.prefilterEnabled = prefilterEnabled;
+    }
+
+    public void setClassFilesEnabled(boolean classFilesEnabled) {
+        this.classFilesEnabled = classFilesEnabled;
+        fileCollector.setClassFilesIncluded(classFilesEnabled);
+    }
+
+    // references to the classes of class relocations are relocated in all files, not only in the moved classes
+    public void setClassResolutionEnabled(boolean classResolutionEnabled) {
+        this.classResolutionEnabled = classResolutionEnabled;
+    }
+
+    public void addResourceInclude(String glob) {
+        fileCollector.addResourceInclude(glob);
+    }
+
+    public void setManifest(Path manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    public void setReferenceIndex(Path referenceIndexFile) {
+        this.referenceIndexFile = referenceIndexFile;
+    }
+
+    public void setJournal(Path journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    // the running relocation stops once the files being processed are done, they are committed if there's a journal
+    public void cancel() {
+        synchronized (activeRuns) {
+            cancelPending = activeRuns.isEmpty();
+            activeRuns.forEach(run -> run.cancelled = true);
+        }
+    }
+
+    public void addInclude(String glob) {
+        fileCollector.addInclude(glob);
+    }
+
+    public void addExclude(String glob) {
+        fileCollector.addExclude(glob);
+    }
+
+    public void setOutputMode(OutputMode outputMode) {
+        this.outputMode = Objects.requireNonNull(outputMode);
+    }
+
+    public void setParserConfiguration(ParserConfiguration parserConfiguration) {
+        this.parserConfiguration = Objects.requireNonNull(parserConfiguration);
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = Objects.requireNonNull(charset);
+    }
+
+    public void setListener(RelocationListener listener) {
+        this.listener = Objects.requireNonNull(listener);
+    }
+
     public void relocate() throws IOException {
-        fileCollector.collectFiles(sourceDirectory).forEach(file -> {
+        Run run = newRun((manifestFile == null) ? null :
+            RelocationManifest.load(manifestFile, sourceRoots, fileRelocator.getRelocations(),
+                                    classResolutionEnabled),
+                         outputMode == OutputMode.PRESERVE_FORMATTING);
+        run.transaction.recover(getDirectories());
+        if (referenceIndexFile != null) {
+            run.referenceIndex = ReferenceIndex.load(referenceIndexFile, sourceRoots,
+                                                     fileRelocator.getIndex(), classResolutionEnabled);
+        }
+        if (journalFile != null) {
+            run.journal = RelocationJournal.open(journalFile, sourceRoots.get(0).getDirectory(),
+                                                 fileRelocator.getRelocations(), classResolutionEnabled);
+        }
+        try {
             try {
-                String fileName = file.getFileName().toString();
-                CompilationUnit compilationUnit = parse(file);
-                if (relocate(compilationUnit, fileName)) {
-                    generateFile(compilationUnit, fileName, file);
+                process(run, (sourceRoot, file) -> relocateFile(sourceRoot, file, run));
+            } catch (CancellationException e) {
+                if (run.journal != null) {
+                    checkpoint(run);
                 }
+                throw e;
+            }
+            checkpoint(run);
+        } finally {
+            run.transaction.rollback();
+            if (run.journal != null) {
+                run.journal.close();
+            }
+        }
+        if (run.manifest != null) {
+            // outputs are recorded once published
+            for (Map.Entry<Path, Path> output : run.outputs.entrySet()) {
+                run.manifest.record(output.getKey(), output.getValue());
+            }
+            run.manifest.save();
+        }
+        if (run.referenceIndex != null) {
+            run.referenceIndex.save();
+        }
+        if (!run.failures.isEmpty()) {
+            throw new RelocatorException(run.failures);
+        }
+        if (run.journal != null) {
+            run.journal.delete();
+        }
+    }
+
+    // the journal is written ahead of the commit
+    // the source directories and the output directories
+    private List<Path> getDirectories() {
+        List<Path> directories = new ArrayList<>();
+        for (SourceRoot sourceRoot : sourceRoots) {
+            directories.add(sourceRoot.getDirectory());
+            if (!sourceRoot.isInPlace()) {
+                directories.add(sourceRoot.getOutputDirectory());
+            }
+        }
+        return directories;
+    }
+
+    private void checkpoint(Run run) throws IOException {
+        if (run.journal != null) {
+            run.journal.checkpoint();
+        }
+        run.transaction.commit();
+    }
+
+    public RelocationReport analyze() throws IOException {
+        Run run = newRun(null, true);
+        Map<Path, RelocationReport.FileChange> changes = new ConcurrentSkipListMap<>();
+        Map<Path, Path> outputs = new ConcurrentHashMap<>();
+        process(run, (sourceRoot, file) -> analyzeFile(sourceRoot, file, run, changes, outputs));
+        return new RelocationReport(changes.values(), outputs, run.failures, fileRelocator.getIndex()::getOrigins);
+    }
+
+    public RelocationWatcher watch(long debounceMillis) throws IOException {
+        return watch(debounceMillis, Math.max(debounceMillis * 10, DEFAULT_MAX_WATCH_DELAY_MILLIS));
+    }
+
+    public RelocationWatcher watch(long debounceMillis, long maxDelayMillis) throws IOException {
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("debounceMillis must be >= 0 : " + debounceMillis);
+        }
+        if (maxDelayMillis < debounceMillis) {
+            throw new IllegalArgumentException("maxDelayMillis must be >= debounceMillis : " + maxDelayMillis);
+        }
+        RelocationWatcher watcher = new RelocationWatcher(fileCollector, debounceMillis, maxDelayMillis);
+        Run run = newRun(null, outputMode == OutputMode.PRESERVE_FORMATTING);
+        run.outputRecorder = watcher::recordOutput;
+        run.transaction.recover(getDirectories());
+        WorkerPool workerPool = new WorkerPool(workerCount);
+        try {
+            watcher.start(sourceRoots, files -> relocateFiles(files, run, workerPool), workerPool);
+        } catch (IOException | RuntimeException e) {
+            watcher.close();
+            throw e;
+        }
+        return watcher;
+    }
+
+    private Map<Path, Throwable> relocateFiles(Map<Path, SourceRoot> files, Run run, WorkerPool workerPool) {
+        run.failures.clear();
+        try {
+            files.forEach((file, sourceRoot) -> workerPool.submit(() -> relocateFile(sourceRoot, file, run)));
+            workerPool.await();
+            run.transaction.commit();
+        } catch (IOException e) {
+            files.keySet().forEach(file -> run.failures.putIfAbsent(file, e));
+        } finally {
+            try {
+                run.transaction.rollback();
             } catch (IOException e) {
-                throw new RelocatorException(e);
+                files.keySet().forEach(file -> run.failures.putIfAbsent(file, e));
+            }
+        }
+        return new HashMap<>(run.failures);
+    }
+
+    public void relocateArchive(Path archive, Path output) throws IOException {
+        if (exists(output) && isSameFile(archive, output)) {
+            throw new IllegalArgumentException("output must differ from archive : " + output);
+        }
+        Run run = newRun(null, outputMode == OutputMode.PRESERVE_FORMATTING);
+        try (ZipReader reader = new ZipReader(archive); ZipWriter writer = new ZipWriter(output);
+             WorkerPool workerPool = new WorkerPool(workerCount)) {
+            writer.setComment(reader.getComment());
+            MemoryBudget budget = newMemoryBudget();
+            int batchSize = workerCount * ARCHIVE_BATCH_SIZE_PER_WORKER;
+            List<ArchiveEntry> batch = new ArrayList<>(batchSize);
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                ArchiveEntry archiveEntry = new ArchiveEntry(entry);
+                if (!entry.isDirectory() && (isSourceFile(entry.name) || (classFilesEnabled && isClassFile(entry.name))
+                                             || fileCollector.isResource(get(entry.name)))) {
+                    if (budget != null) {
+                        archiveEntry.reserved = budget.tryReserve(entry.size);
+                        if (archiveEntry.reserved == 0) {
+                            writeBatch(batch, reader, writer, workerPool, budget, run);
+                            archiveEntry.reserved = budget.reserve(entry.size);
+                        }
+                    }
+                    archiveEntry.bytes = reader.readContent(entry);
+                    workerPool.submit(() -> relocateEntry(archiveEntry, run));
+                }
+                batch.add(archiveEntry);
+                if (batch.size() == batchSize) {
+                    writeBatch(batch, reader, writer, workerPool, budget, run);
+                }
+            }
+            writeBatch(batch, reader, writer, workerPool, budget, run);
+            if (run.failures.isEmpty()) {
+                writer.finish();
+            }
+        }
+        if (!run.failures.isEmpty()) {
+            throw new RelocatorException(run.failures);
+        }
+    }
+
+    private void writeBatch(List<ArchiveEntry> batch, ZipReader reader, ZipWriter writer, WorkerPool workerPool,
+                            MemoryBudget budget, Run run) throws IOException {
+        workerPool.await();
+        for (ArchiveEntry archiveEntry : batch) {
+            if (archiveEntry.content == null) {
+                writer.copy(archiveEntry.entry, reader);
+            } else {
+                Path file = get(archiveEntry.entry.name);
+                Path target = get(archiveEntry.name);
+                long start = run.start();
+                writer.write(archiveEntry.entry, archiveEntry.name, archiveEntry.content);
+                run.phaseCompleted(Phase.WRITE, file, start);
+                run.listener.bytesWritten(target, archiveEntry.content.length);
+                run.listener.fileModified(file, target);
+            }
+            if (budget != null) {
+                budget.release(archiveEntry.reserved);
+            }
+        }
+        batch.clear();
+    }
+
+    private void relocateEntry(ArchiveEntry archiveEntry, Run run) {
+        ZipEntryRecord entry = archiveEntry.entry;
+        Path file = get(entry.name);
+        try {
+            run.listener.bytesRead(file, archiveEntry.bytes.length);
+            if (isResource(file)) {
+                RelocatedResource relocatedResource = relocateResource(file, archiveEntry.bytes, run, false);
+                if (relocatedResource != null) {
+                    archiveEntry.content = relocatedResource.content;
+                    archiveEntry.name = entry.name.substring(0, entry.name.length()
+                                                                - file.getFileName().toString().length())
+                                        + relocatedResource.fileName;
+                }
+            } else if ((run.prefilter != null) && !run.prefilter.matches(ByteBuffer.wrap(archiveEntry.bytes))) {
+                run.listener.fileSkipped(file);
+            } else if (isClassFile(entry.name)) {
+                ClassFileRelocator relocator = relocateClassFile(file, archiveEntry.bytes, run);
+                if (relocator.isModified()) {
+                    archiveEntry.content = relocator.getBytes();
+                    archiveEntry.name = getClassEntryName(entry.name, relocator.getSourceClassName(),
+                                                          relocator.getClassName());
+                }
+            } else {
+                RelocatedSource relocatedSource = relocateSource(file, archiveEntry.bytes, run,
+                                                                 outputMode == OutputMode.PRESERVE_FORMATTING);
+                if (relocatedSource.modified) {
+                    archiveEntry.content = print(relocatedSource, file, run).getBytes(charset);
+                    archiveEntry.name = getEntryName(entry.name, relocatedSource.sourcePackage,
+                                                     relocatedSource.targetPackage);
+                }
+            }
+        } catch (RuntimeException e) {
+            run.failures.put(file, e);
+        } finally {
+            archiveEntry.bytes = null;
+        }
+    }
+
+    private static String getEntryName(String name, String sourcePackage, String targetPackage) {
+        if ((targetPackage == null) || sourcePackage.isEmpty()) {
+            return name;
+        }
+        int slash = name.lastIndexOf('/');
+        String directory = (slash < 0) ? "" : name.substring(0, slash);
+        String sourceDirectory = sourcePackage.replace('.', '/');
+        String prefix;
+        if (directory.equals(sourceDirectory)) {
+            prefix = "";
+        } else if (directory.endsWith('/' + sourceDirectory)) {
+            prefix = directory.substring(0, directory.length() - sourceDirectory.length());
+        } else {
+            return name;
+        }
+        return prefix + targetPackage.replace('.', '/') + name.substring(slash);
+    }
+
+    private static String getClassEntryName(String name, String sourceClassName, String targetClassName) {
+        String suffix = sourceClassName + ".class";
+        if (!name.equals(suffix) && !name.endsWith('/' + suffix)) {
+            return name;
+        }
+        return name.substring(0, name.length() - suffix.length()) + targetClassName + ".class";
+    }
+
+    private boolean isResource(Path relativePath) {
+        String name = relativePath.getFileName().toString();
+        return ResourceRelocator.MODULE_INFO.equals(name)
+               || (!isSourceFile(name) && !isClassFile(name) && fileCollector.isResource(relativePath));
+    }
+
+    private static boolean isSourceFile(String name) {
+        return name.endsWith(".java");
+    }
+
+    private static boolean isClassFile(String name) {
+        return name.endsWith(".class");
+    }
+
+    private Run newRun(RelocationManifest manifest, boolean needsRanges) {
+        return newRun(listener, manifest, needsRanges);
+    }
+
+    private Run newRun(RelocationListener listener, RelocationManifest manifest, boolean needsRanges) {
+        ParserConfiguration configuration = new ParserConfiguration()
+            // patches count one column per character
+            .setTabSize(needsRanges ? 1 : parserConfiguration.getTabSize())
+            .setDoNotAssignCommentsPrecedingEmptyLines(parserConfiguration.isDoNotAssignCommentsPrecedingEmptyLines())
+            .setLanguageLevel(parserConfiguration.getLanguageLevel())
+            .setSymbolResolver(parserConfiguration.getSymbolResolver().orElse(null))
+            // tokens are only needed by patches, the pretty printer keeps the caller's setting
+            .setStoreTokens(needsRanges || parserConfiguration.isStoreTokens())
+            // comments are printed back by the pretty printer, patches only need the ranges of the relocated names
+            .setAttributeComments(!needsRanges && parserConfiguration.isAttributeComments())
+            .setLexicalPreservationEnabled(false);
+        // finds the relocated packages after the header of a source file, only needed when preserving the formatting
+        PackagePrefilter headerPrefilter = (outputMode == OutputMode.PRESERVE_FORMATTING) ?
+            PackagePrefilter.create(fileRelocator.getRelocations(), false) : null;
+        if ((headerPrefilter != null) && !headerPrefilter.canMatchChars()) {
+            headerPrefilter = null;
+        }
+        List<Path> sourceDirectories = new ArrayList<>();
+        for (SourceRoot sourceRoot : sourceRoots) {
+            sourceDirectories.add(sourceRoot.getDirectory());
+        }
+        ClassResolver classResolver = classResolutionEnabled ?
+            ClassResolver.create(fileRelocator.getRelocations(), sourceDirectories) : null;
+        // the commit log is written next to the outputs of the first source directory
+        FileTransaction transaction = new FileTransaction(
+            sourceRoots.get(0).resolveOutput(get(FileTransaction.LOG_FILE_NAME)));
+        return new Run(listener, prefilterEnabled ? createPrefilter() : null, headerPrefilter, classResolver, manifest,
+                       configuration, transaction);
+    }
+
+    private void process(Run run, BiConsumer<SourceRoot, Path> task) throws IOException {
+        synchronized (activeRuns) {
+            run.cancelled = cancelPending;
+            cancelPending = false;
+            activeRuns.add(run);
+        }
+        try {
+            process(run, task, newMemoryBudget());
+        } finally {
+            synchronized (activeRuns) {
+                activeRuns.remove(run);
             }
-        });
+        }
+    }
+
+    private void process(Run run, BiConsumer<SourceRoot, Path> task, MemoryBudget budget) throws IOException {
+        try (WorkerPool workerPool = new WorkerPool(workerCount)) {
+            long start = run.start();
+            AtomicInteger submittedFiles = new AtomicInteger();
+            try {
+                if (run.cancelled) {
+                    throw new CancellationException("relocation cancelled");
+                }
+                for (SourceRoot sourceRoot : sourceRoots) {
+                    fileCollector.collectFiles(sourceRoot.getDirectory(), file -> {
+                        if (run.cancelled) {
+                            throw new CancellationException("relocation cancelled");
+                        }
+                        submit(workerPool, budget, file, () -> {
+                            if (!run.cancelled) {
+                                task.accept(sourceRoot, file);
+                            }
+                        });
+                        if ((run.journal != null)
+                            && (submittedFiles.incrementAndGet() % JOURNAL_CHECKPOINT_FILE_COUNT == 0)) {
+                            workerPool.await();
+                            try {
+                                checkpoint(run);
+                            } catch (IOException e) {
+                                throw new RelocatorException(e);
+                            }
+                        }
+                    });
+                }
+            } catch (CancellationException e) {
+                workerPool.await();
+                throw e;
+            }
+            run.phaseCompleted(Phase.COLLECT, null, start);
+            workerPool.await();
+        }
+    }
+
+    private static void submit(WorkerPool workerPool, MemoryBudget budget, Path file, Runnable task) {
+        if (budget == null) {
+            workerPool.submit(task);
+            return;
+        }
+        // waiting here for the files being processed to be written also pauses the collect
+        int reserved = budget.reserve(getFileSize(file));
+        try {
+            workerPool.submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    budget.release(reserved);
+                }
+            });
+        } catch (RuntimeException e) {
+            budget.release(reserved);
+            throw e;
+        }
+    }
+
+    private MemoryBudget newMemoryBudget() {
+        return (memoryBudget == 0) ? null : new MemoryBudget(memoryBudget);
+    }
+
+    private static long getFileSize(Path file) {
+        try {
+            return size(file);
+        } catch (IOException e) {
+            // the task reports the failure when reading the file
+            return 0;
+        }
+    }
+
+    private PackagePrefilter createPrefilter() {
+        return PackagePrefilter.create(fileRelocator.getRelocations(), classFilesEnabled, charset);
+    }
+
+    private void analyzeFile(SourceRoot sourceRoot, Path file, Run run, Map<Path, RelocationReport.FileChange> changes,
+                             Map<Path, Path> outputs) {
+        try {
+            Path output = sourceRoot.getUnchangedOutput(file);
+            if (isResource(sourceRoot.getDirectory().relativize(file))) {
+                RelocatedResource relocatedResource = relocateResource(file, run, true);
+                if (relocatedResource != null) {
+                    output = output.resolveSibling(relocatedResource.fileName);
+                    changes.put(file, new RelocationReport.FileChange(file, output, relocatedResource.edits));
+                }
+            } else if (!isSourceFile(file.getFileName().toString()) && !isClassFile(file.getFileName().toString())) {
+                run.listener.fileSkipped(file);
+            } else if ((run.prefilter != null) && !run.prefilter.matches(file)) {
+                run.listener.fileSkipped(file);
+            } else if (isClassFile(file.getFileName().toString())) {
+                ClassFileRelocator relocator = relocateClassFile(file, readAllBytes(file), run);
+                if (relocator.isModified()) {
+                    output = getOutput(sourceRoot, getPackageName(relocator.getClassName()), file);
+                    List<TextEdit> edits = new ArrayList<>();
+                    for (Relocation relocation : relocator.getAppliedRelocations()) {
+                        edits.add(new TextEdit(null, relocation, relocation.getTargetPackage()));
+                    }
+                    changes.put(file, new RelocationReport.FileChange(file, output, edits));
+                }
+            } else {
+                RelocatedSource relocatedSource = relocateSource(file, run, true);
+                if (relocatedSource.modified) {
+                    output = getOutput(sourceRoot, relocatedSource.targetPackage, file);
+                    changes.put(file, new RelocationReport.FileChange(file, output, relocatedSource.edits));
+                }
+            }
+            outputs.put(file, output);
+        } catch (IOException | RuntimeException e) {
+            run.failures.put(file, e);
+        }
+    }
+
+    private void relocateFile(SourceRoot sourceRoot, Path file, Run run) {
+        try {
+            if ((run.manifest != null) && run.manifest.isUpToDate(file)) {
+                run.listener.fileSkipped(file);
+                return;
+            }
+            Path finishedOutput = (run.journal == null) ? null : run.journal.getFinishedOutput(file);
+            if (finishedOutput != null) {
+                run.listener.fileSkipped(file);
+                if (run.manifest != null) {
+                    run.outputs.put(sourceRoot.isInPlace() ? finishedOutput : file, finishedOutput);
+                }
+                return;
+            }
+            Path output = null;
+            if (isResource(sourceRoot.getDirectory().relativize(file))) {
+                output = relocateResource(sourceRoot, file, run);
+            } else if (!isSourceFile(file.getFileName().toString()) && !isClassFile(file.getFileName().toString())) {
+                // included but neither a source nor a resource: published as is
+                run.listener.fileSkipped(file);
+            } else if (isSourceFile(file.getFileName().toString()) && (run.referenceIndex != null)
+                       && run.referenceIndex.isUnaffected(file)) {
+                run.listener.fileSkipped(file);
+            } else if ((run.prefilter != null) && !run.prefilter.matches(file)) {
+                run.listener.fileSkipped(file);
+                if (isSourceFile(file.getFileName().toString()) && (run.referenceIndex != null)) {
+                    // indexed so that the next runs don't even read it
+                    run.referenceIndex.record(file, new String(readAllBytes(file), charset));
+                }
+            } else if (isClassFile(file.getFileName().toString())) {
+                output = relocateClassFile(sourceRoot, file, run);
+            } else {
+                output = relocateSource(sourceRoot, file, run);
+            }
+            boolean modified = output != null;
+            if (!modified) {
+                output = sourceRoot.publishUnchanged(file, run.transaction);
+            }
+            Path previousOutput = (run.manifest == null) ? null : run.manifest.getPreviousOutput(file);
+            if ((previousOutput != null) && !sourceRoot.isInPlace()
+                && !previousOutput.equals(output.toAbsolutePath().normalize())) {
+                // left by a previous run that moved the file elsewhere
+                run.transaction.stageDeletion(previousOutput);
+            }
+            if (run.journal != null) {
+                run.journal.add(file, output, modified ? run.transaction.getStagedFile(output) : file);
+            }
+            if (run.manifest != null) {
+                run.outputs.put(sourceRoot.isInPlace() ? output : file, output);
+            }
+        } catch (IOException | RuntimeException e) {
+            run.failures.put(file, e);
+        }
+    }
+
+    private RelocatedSource relocateSource(Path file, Run run, boolean recordEdits) throws IOException {
+        long start = run.start();
+        byte[] bytes = readAllBytes(file);
+        run.listener.bytesRead(file, bytes.length);
+        run.phaseCompleted(Phase.READ, file, start);
+        return relocateSource(file, bytes, run, recordEdits);
+    }
+
+    private RelocatedSource relocateSource(Path file, byte[] bytes, Run run, boolean recordEdits) {
+        long start = run.start();
+        String source = new String(bytes, charset);
+        if ((run.headerPrefilter != null) && (run.classResolver == null)) {
+            RelocatedSource relocatedSource = relocateHeader(file, source, run, start);
+            if (relocatedSource != null) {
+                return relocatedSource;
+            }
+        }
+        ParseResult<CompilationUnit> result = run.parsers.get().parse(COMPILATION_UNIT, provider(source));
+        if (!result.isSuccessful() || !result.getResult().isPresent()) {
+            throw new ParseProblemException(result.getProblems());
+        }
+        CompilationUnit compilationUnit = result.getResult().get().setStorage(file);
+        if (run.referenceIndex != null) {
+            run.referenceIndex.record(file, compilationUnit);
+        }
+        String sourcePackage = Optional.ofNullable(getPackageName(compilationUnit)).orElse("");
+        run.listener.fileScanned(file);
+        run.phaseCompleted(Phase.PARSE, file, start);
+
+        start = run.start();
+        List<TextEdit> edits = null;
+        boolean modified;
+        if (recordEdits || (run.listener != RelocationListener.NO_OP)) {
+            edits = new ArrayList<>();
+            modified = (run.classResolver == null) ? fileRelocator.relocate(compilationUnit, edits) :
+                fileRelocator.relocate(compilationUnit, edits, run.classResolver);
+            for (TextEdit edit : edits) {
+                relocationApplied(file, edit.getRelocation(), run);
+            }
+        } else {
+            modified = (run.classResolver == null) ? fileRelocator.relocate(compilationUnit) :
+                fileRelocator.relocate(compilationUnit, null, run.classResolver);
+        }
+        run.phaseCompleted(Phase.RELOCATE, file, start);
+        return new RelocatedSource(source, sourcePackage, getPackageName(compilationUnit), compilationUnit, null,
+                                   edits, modified);
+    }
+
+    // when the package names only appear in the package and import declarations, they are rewritten without parsing
+    // the rest of the file, which is copied as is
+    private RelocatedSource relocateHeader(Path file, String source, Run run, long start) {
+        SourceHeader header = SourceHeader.parse(source);
+        if ((header == null) || run.headerPrefilter.matches(source, header.getEnd())) {
+            return null;
+        }
+        String fileName = file.getFileName().toString();
+        String classSimpleName = fileName.substring(0, Math.max(0, fileName.lastIndexOf('.')));
+        if (run.referenceIndex != null) {
+            run.referenceIndex.record(file, source);
+        }
+        run.listener.fileScanned(file);
+        run.phaseCompleted(Phase.PARSE, file, start);
+
+        start = run.start();
+        List<TextEdit> edits = new ArrayList<>();
+        boolean modified = fileRelocator.relocate(header, classSimpleName, edits);
+        TextPatch patch = TextPatch.create(source, edits);
+        if (patch == null) {
+            return null;
+        }
+        for (TextEdit edit : edits) {
+            relocationApplied(file, edit.getRelocation(), run);
+        }
+        String sourcePackage = header.getPackageName();
+        String targetPackage = (sourcePackage == null) ? null :
+            fileRelocator.relocatePackage(sourcePackage, classSimpleName);
+        run.phaseCompleted(Phase.RELOCATE, file, start);
+        return new RelocatedSource(source, (sourcePackage == null) ? "" : sourcePackage, targetPackage, null, patch,
+                                   edits, modified);
+    }
+
+    private Path relocateSource(SourceRoot sourceRoot, Path file, Run run) throws IOException {
+        RelocatedSource relocatedSource = relocateSource(file, run, outputMode == OutputMode.PRESERVE_FORMATTING);
+        if (!relocatedSource.modified) {
+            return null;
+        }
+
+        String content = print(relocatedSource, file, run);
+        long start = run.start();
+        Path output = generateFile(sourceRoot, relocatedSource.targetPackage, file,
+                                   content.getBytes(charset), run);
+        run.phaseCompleted(Phase.WRITE, file, start);
+        run.fileModified(file, output);
+        return output;
+    }
+
+    private String print(RelocatedSource relocatedSource, Path file, Run run) {
+        long start = run.start();
+        TextPatch patch = relocatedSource.patch;
+        if ((patch == null) && (outputMode == OutputMode.PRESERVE_FORMATTING)) {
+            patch = TextPatch.create(relocatedSource.source, relocatedSource.edits);
+        }
+        String content = (patch == null) ? relocatedSource.compilationUnit.toString() : patch.apply();
+        run.phaseCompleted(Phase.PRINT, file, start);
+        return content;
+    }
+
+    private Path relocateClassFile(SourceRoot sourceRoot, Path file, Run run) throws IOException {
+        long start = run.start();
+        byte[] bytes = readAllBytes(file);
+        run.listener.bytesRead(file, bytes.length);
+        run.phaseCompleted(Phase.READ, file, start);
+        ClassFileRelocator relocator = relocateClassFile(file, bytes, run);
+        if (!relocator.isModified()) {
+            return null;
+        }
+
+        start = run.start();
+        Path output = generateFile(sourceRoot, getPackageName(relocator.getClassName()), file, relocator.getBytes(),
+                                   run);
+        run.phaseCompleted(Phase.WRITE, file, start);
+        run.fileModified(file, output);
+        return output;
+    }
+
+    private ClassFileRelocator relocateClassFile(Path file, byte[] bytes, Run run) {
+        long start = run.start();
+        ClassFileRelocator relocator = new ClassFileRelocator(fileRelocator.getIndex(), bytes);
+        relocator.relocate();
+        run.listener.fileScanned(file);
+        for (Relocation relocation : relocator.getAppliedRelocations()) {
+            relocationApplied(file, relocation, run);
+        }
+        run.phaseCompleted(Phase.RELOCATE, file, start);
+        return relocator;
+    }
+
+    private static String getPackageName(CompilationUnit compilationUnit) {
+        return compilationUnit.getPackageDeclaration().map(PackageDeclaration::getNameAsString).orElse(null);
+    }
+
+    private static String getPackageName(String internalClassName) {
+        int slash = internalClassName.lastIndexOf('/');
+        return (slash < 0) ? null : internalClassName.substring(0, slash).replace('/', '.');
+    }
+
+    private Path relocateResource(SourceRoot sourceRoot, Path file, Run run) throws IOException {
+        if (!getResourceRelocator(run).mayContainReferences(file)) {
+            run.listener.fileSkipped(file);
+            return null;
+        }
+        RelocatedResource relocatedResource = relocateResource(file, run, false);
+        if (relocatedResource == null) {
+            return null;
+        }
+
+        long start = run.start();
+        Path output = sourceRoot.getUnchangedOutput(file).resolveSibling(relocatedResource.fileName);
+        writeFile(sourceRoot, file, output, relocatedResource.content, run);
+        run.phaseCompleted(Phase.WRITE, file, start);
+        run.fileModified(file, output);
+        return output;
     }
 
-    private boolean relocate(CompilationUnit compilationUnit, String fileName) {
-        System.out.println("Relocating " + fileName);
-        return fileRelocator.relocate(compilationUnit);
+    private RelocatedResource relocateResource(Path file, Run run, boolean recordEdits) throws IOException {
+        long start = run.start();
+        byte[] bytes = readAllBytes(file);
+        run.listener.bytesRead(file, bytes.length);
+        run.phaseCompleted(Phase.READ, file, start);
+        return relocateResource(file, bytes, run, recordEdits);
     }
 
-    private void generateFile(CompilationUnit compilationUnit, String fileName, Path file)
+    private RelocatedResource relocateResource(Path file, byte[] bytes, Run run, boolean recordEdits) {
+        long start = run.start();
+        ResourceRelocator resourceRelocator = getResourceRelocator(run);
+        List<TextEdit> edits = (recordEdits || (run.listener != RelocationListener.NO_OP)) ? new ArrayList<>() : null;
+        String content = resourceRelocator.relocate(file, new String(bytes, ISO_8859_1), edits);
+        String fileName = resourceRelocator.relocateFileName(file);
+        run.listener.fileScanned(file);
+        if (edits != null) {
+            for (TextEdit edit : edits) {
+                relocationApplied(file, edit.getRelocation(), run);
+            }
+        }
+        run.phaseCompleted(Phase.RELOCATE, file, start);
+        if ((content == null) && fileName.equals(file.getFileName().toString())) {
+            return null;
+        }
+        return new RelocatedResource((content == null) ? bytes : content.getBytes(ISO_8859_1), fileName, edits);
+    }
+
+    // hits are counted for the relocations given by the user, not the ones compiled from them
+    private void relocationApplied(Path file, Relocation relocation, Run run) {
+        for (Relocation origin : fileRelocator.getIndex().getOrigins(relocation)) {
+            run.listener.relocationApplied(file, origin);
+        }
+    }
+
+    private ResourceRelocator getResourceRelocator(Run run) {
+        ResourceRelocator result = run.resourceRelocator;
+        if (result == null) {
+            synchronized (run) {
+                result = run.resourceRelocator;
+                if (result == null) {
+                    result = new ResourceRelocator(fileRelocator.getIndex());
+                    run.resourceRelocator = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Path getOutput(SourceRoot sourceRoot, String packageName, Path file) {
+        if (packageName == null) {
+            return sourceRoot.getUnchangedOutput(file);
+        }
+        return sourceRoot.resolveOutput(get(packageName.replace(".", "/"))).resolve(file.getFileName().toString());
+    }
+
+    private Path generateFile(SourceRoot sourceRoot, String packageName, Path file, byte[] bytes, Run run)
         throws IOException {
-        Optional<PackageDeclaration> packageDeclaration = compilationUnit.getPackageDeclaration();
-        if (!packageDeclaration.isPresent()) {
-            return; //TODO handle case of default package
+        Path output = getOutput(sourceRoot, packageName, file);
+        writeFile(sourceRoot, file, output, bytes, run);
+        return output;
+    }
+
+    private void writeFile(SourceRoot sourceRoot, Path file, Path output, byte[] bytes, Run run) throws IOException {
+        run.transaction.stage(sourceRoot.isInPlace() ? file : null, output, bytes);
+        run.listener.bytesWritten(output, bytes.length);
+    }
+
+    private static class RelocatedResource {
+        private final byte[] content;
+        private final String fileName;
+        private final List<TextEdit> edits;
+
+        private RelocatedResource(byte[] content, String fileName, List<TextEdit> edits) {
+            this.content = content;
+            this.fileName = fileName;
+            this.edits = edits;
         }
-        String packageName = packageDeclaration.get().getNameAsString().replace(".", "/");
+    }
+
+    private static class ArchiveEntry {
+        private final ZipEntryRecord entry;
+        private byte[] bytes;
+        private byte[] content;
+        private String name;
+        private int reserved;
 
-        Path packageDirectory = sourceDirectory.resolve(get(packageName));
-        createDirectories(packageDirectory);
-        Path output = packageDirectory.resolve(fileName);
-        if (!Objects.equals(file.toAbsolutePath().toString(), output.toAbsolutePath().toString())) {
-            move(file, output);
+        private ArchiveEntry(ZipEntryRecord entry) {
+            this.entry = entry;
         }
-        try (Writer writer = newBufferedWriter(output, CREATE)) {
-            writer.write(compilationUnit.toString());
+    }
+
+    private static class RelocatedSource {
+        private final String source;
+        private final String sourcePackage;
+        private final String targetPackage;
+        private final CompilationUnit compilationUnit;
+        private final TextPatch patch;
+        private final List<TextEdit> edits;
+        private final boolean modified;
+
+        private RelocatedSource(String source, String sourcePackage, String targetPackage,
+                                CompilationUnit compilationUnit, TextPatch patch, List<TextEdit> edits,
+                                boolean modified) {
+            this.source = source;
+            this.sourcePackage = sourcePackage;
+            this.targetPackage = targetPackage;
+            this.compilationUnit = compilationUnit;
+            this.patch = patch;
+            this.edits = edits;
+            this.modified = modified;
+        }
+    }
+
+    private static class Run {
+        private final RelocationListener listener;
+        private final boolean timed;
+        private final PackagePrefilter prefilter;
+        private final PackagePrefilter headerPrefilter;
+        private final ClassResolver classResolver;
+        private final RelocationManifest manifest;
+        private final Map<Path, Throwable> failures = new ConcurrentSkipListMap<>();
+        private final FileTransaction transaction;
+        private final Map<Path, Path> outputs = new ConcurrentHashMap<>();
+        private ReferenceIndex referenceIndex;
+        private RelocationJournal journal;
+        private final ThreadLocal<JavaParser> parsers;
+        private volatile ResourceRelocator resourceRelocator;
+        private volatile boolean cancelled;
+        // kept apart from the listener, so that recording outputs doesn't turn the timing of the phases on
+        private Consumer<Path> outputRecorder;
+
+        private Run(RelocationListener listener, PackagePrefilter prefilter, PackagePrefilter headerPrefilter,
+                    ClassResolver classResolver, RelocationManifest manifest,
+                    ParserConfiguration parserConfiguration, FileTransaction transaction) {
+            this.listener = listener;
+            this.transaction = transaction;
+            this.parsers = ThreadLocal.withInitial(() -> new JavaParser(parserConfiguration));
+            this.timed = (listener != RelocationListener.NO_OP);
+            this.prefilter = prefilter;
+            this.headerPrefilter = headerPrefilter;
+            this.classResolver = classResolver;
+            this.manifest = manifest;
+        }
+
+        private void fileModified(Path file, Path output) {
+            if (outputRecorder != null) {
+                outputRecorder.accept(output);
+            }
+            listener.fileModified(file, output);
+        }
+
+        private long start() {
+            return timed ? System.nanoTime() : 0L;
+        }
+
+        private void phaseCompleted(Phase phase, Path file, long start) {
+            if (timed) {
+                listener.phaseCompleted(phase, file, System.nanoTime() - start);
+            }
         }
     }
 }
@@ -1,7 +1,31 @@
 package fr.duminy.relocator;
 
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+@SuppressWarnings("WeakerAccess")
 public class RelocatorException extends RuntimeException {
+    private final Map<Path, Throwable> failures;
+
     RelocatorException(Throwable cause) {
         super(cause);
+        failures = Collections.emptyMap();
+    }
+
+    RelocatorException(String message) {
+        super(message);
+        failures = Collections.emptyMap();
+    }
+
+    RelocatorException(Map<Path, Throwable> failures) {
+        super("Failed to relocate " + failures.size() + " file(s) : " + failures.keySet());
+        this.failures = Collections.unmodifiableMap(new TreeMap<>(failures));
+        this.failures.values().forEach(this::addSuppressed);
+    }
+
+    public Map<Path, Throwable> getFailures() {
+        return failures;
     }
 }
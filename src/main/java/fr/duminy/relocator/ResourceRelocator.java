@@ -0,0 +1,201 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.Range;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.lang.Character.isJavaIdentifierPart;
+import static java.lang.Character.isJavaIdentifierStart;
+
+class ResourceRelocator {
+    static final String MODULE_INFO = "module-info.java";
+    private static final String SERVICES_DIRECTORY = "services";
+    private static final String META_INF_DIRECTORY = "META-INF";
+
+    private final RelocationIndex index;
+    private final PackagePrefilter prefilter;
+
+    ResourceRelocator(RelocationIndex index) {
+        this.index = index;
+        this.prefilter = PackagePrefilter.create(index.getRelocations(), true);
+    }
+
+    boolean mayContainReferences(Path file) throws IOException {
+        return (prefilter == null) || prefilter.matches(file) || isServiceFile(file);
+    }
+
+    String relocate(Path file, String text, List<TextEdit> edits) {
+        Patch patch = new Patch(text, edits);
+        if (MODULE_INFO.equals(file.getFileName().toString())) {
+            relocateModuleInfo(patch);
+        } else {
+            relocate(patch, 0, text.length());
+        }
+        return patch.apply();
+    }
+
+    String relocateFileName(Path file) {
+        String fileName = file.getFileName().toString();
+        if (!isServiceFile(file)) {
+            return fileName;
+        }
+        Patch patch = new Patch(fileName, null);
+        relocate(patch, 0, fileName.length());
+        String relocated = patch.apply();
+        return (relocated == null) ? fileName : relocated;
+    }
+
+    static boolean isServiceFile(Path file) {
+        Path services = file.getParent();
+        Path metaInf = (services == null) ? null : services.getParent();
+        return (metaInf != null) && SERVICES_DIRECTORY.equals(String.valueOf(services.getFileName()))
+               && META_INF_DIRECTORY.equals(String.valueOf(metaInf.getFileName()));
+    }
+
+    private void relocateModuleInfo(Patch patch) {
+        String text = patch.text;
+        int start = 0;
+        while (start < text.length()) {
+            int end = start;
+            while ((end < text.length()) && (";{}".indexOf(text.charAt(end)) < 0)) {
+                end++;
+            }
+            int keywordStart = skipWhitespace(text, start, end);
+            int keywordEnd = keywordStart;
+            while ((keywordEnd < end) && isJavaIdentifierPart(text.charAt(keywordEnd))) {
+                keywordEnd++;
+            }
+            String keyword = text.substring(keywordStart, keywordEnd);
+            if (keyword.equals("exports") || keyword.equals("opens")) {
+                int to = indexOfWord(text, "to", keywordEnd, end);
+                relocate(patch, keywordEnd, (to < 0) ? end : to);
+            } else if (keyword.equals("uses") || keyword.equals("provides")) {
+                relocate(patch, keywordEnd, end);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void relocate(Patch patch, int from, int to) {
+        String text = patch.text;
+        int i = from;
+        while (i < to) {
+            char c = text.charAt(i);
+            if (!isJavaIdentifierStart(c) || ((i > 0) && (isJavaIdentifierPart(text.charAt(i - 1))
+                                                          || (text.charAt(i - 1) == '.')))) {
+                i++;
+                continue;
+            }
+            i = relocateName(patch, i, to);
+        }
+    }
+
+    private int relocateName(Patch patch, int start, int to) {
+        String text = patch.text;
+        RelocationIndex.Matcher matcher = index.matcher("");
+        char separator = 0;
+        int segmentStart = start;
+        int segmentEnd = identifierEnd(text, segmentStart, to);
+        while (true) {
+            int nextStart = -1;
+            int nextEnd = -1;
+            if (segmentEnd + 1 < to) {
+                char c = text.charAt(segmentEnd);
+                if (((c == '.') || (c == '/')) && ((separator == 0) || (c == separator))
+                    && isJavaIdentifierStart(text.charAt(segmentEnd + 1))) {
+                    nextStart = segmentEnd + 1;
+                    nextEnd = identifierEnd(text, nextStart, to);
+                    separator = c;
+                }
+            }
+            String classSimpleName = (nextStart < 0) ? "" : text.substring(nextStart, nextEnd);
+            if (!matcher.next(text, segmentStart, segmentEnd, classSimpleName) || (nextStart < 0)) {
+                break;
+            }
+            segmentStart = nextStart;
+            segmentEnd = nextEnd;
+        }
+
+        Relocation matchedRelocation = matcher.getRelocation();
+        if ((matchedRelocation != null)
+            && !matchedRelocation.getTargetPackage().equals(matchedRelocation.getSourcePackage())) {
+            String replacement = matchedRelocation.getTargetPackage();
+            if (separator == '/') {
+                replacement = replacement.replace('.', '/');
+            }
+            patch.add(start, matcher.getEnd(), matchedRelocation, replacement);
+        }
+
+        int end = segmentEnd;
+        while ((end < to) && (isJavaIdentifierPart(text.charAt(end)) || (text.charAt(end) == '.')
+                              || (text.charAt(end) == '/'))) {
+            end++;
+        }
+        return Math.max(end, start + 1);
+    }
+
+    private static int identifierEnd(String text, int start, int to) {
+        int end = start;
+        while ((end < to) && isJavaIdentifierPart(text.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static int skipWhitespace(String text, int start, int end) {
+        while ((start < end) && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int indexOfWord(String text, String word, int start, int end) {
+        for (int i = text.indexOf(word, start); (i >= 0) && (i + word.length() <= end); i = text.indexOf(word, i + 1)) {
+            int wordEnd = i + word.length();
+            if (!isJavaIdentifierPart(text.charAt(i - 1))
+                && ((wordEnd == text.length()) || !isJavaIdentifierPart(text.charAt(wordEnd)))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Patch {
+        private final String text;
+        private final List<TextEdit> edits;
+        private StringBuilder result;
+        private int copied;
+        private int line = 1;
+        private int lineStart;
+        private int scanned;
+
+        private Patch(String text, List<TextEdit> edits) {
+            this.text = text;
+            this.edits = edits;
+        }
+
+        private void add(int start, int end, Relocation relocation, String replacement) {
+            if (result == null) {
+                result = new StringBuilder(text.length() + 64);
+            }
+            result.append(text, copied, start).append(replacement);
+            copied = end;
+            if (edits != null) {
+                for (; scanned < start; scanned++) {
+                    if (text.charAt(scanned) == '\n') {
+                        line++;
+                        lineStart = scanned + 1;
+                    }
+                }
+                Range range = Range.range(line, start - lineStart + 1, line, end - lineStart);
+                edits.add(new TextEdit(range, relocation, replacement));
+            }
+        }
+
+        private String apply() {
+            return (result == null) ? null : result.append(text, copied, text.length()).toString();
+        }
+    }
+}
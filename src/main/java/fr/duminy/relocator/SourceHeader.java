@@ -0,0 +1,299 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.Range;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+// the package and import declarations of a compilation unit, tokenized without parsing the rest of the file
+class SourceHeader {
+    private final String source;
+    private final List<QualifiedName> names;
+    private final QualifiedName packageName;
+    private final int end;
+
+    private SourceHeader(String source, List<QualifiedName> names, QualifiedName packageName, int end) {
+        this.source = source;
+        this.names = names;
+        this.packageName = packageName;
+        this.end = end;
+    }
+
+    // null when the header can't be tokenized, the file must then be parsed
+    static SourceHeader parse(String source) {
+        Tokenizer tokenizer = new Tokenizer(source);
+        List<QualifiedName> names = new ArrayList<>();
+        QualifiedName packageName = null;
+        if (tokenizer.skipBlanks() && tokenizer.skipKeyword("package")) {
+            packageName = tokenizer.readName(false);
+            if ((packageName == null) || !tokenizer.skip(';')) {
+                return null;
+            }
+            names.add(packageName);
+        }
+        while (tokenizer.skipBlanks()) {
+            if (tokenizer.skip(';')) {
+                continue;
+            }
+            if (!tokenizer.skipKeyword("import")) {
+                break;
+            }
+            tokenizer.skipKeyword("static");
+            QualifiedName name = tokenizer.readName(true);
+            if ((name == null) || !tokenizer.skip(';')) {
+                return null;
+            }
+            names.add(name);
+        }
+        return tokenizer.failed ? null : new SourceHeader(source, names, packageName, tokenizer.position);
+    }
+
+    // the qualified names of the whole file, tokenized like the header, in the form of
+    // ReferenceIndex.collectReferences : null when the file can't be tokenized
+    static String[] scanReferences(String source) {
+        SourceHeader header = parse(source);
+        if (header == null) {
+            return null;
+        }
+        TreeSet<String> names = new TreeSet<>();
+        for (QualifiedName name : header.names) {
+            names.add(name.toString());
+        }
+        Tokenizer tokenizer = new Tokenizer(source);
+        tokenizer.position = header.end;
+        while (tokenizer.skipBlanks()) {
+            char c = source.charAt(tokenizer.position);
+            if ((c == '"') || (c == '\'')) {
+                if (!tokenizer.skipLiteral(c)) {
+                    return null;
+                }
+            } else if (Character.isJavaIdentifierStart(c)) {
+                QualifiedName name = tokenizer.readQualifiedName();
+                if (name.size() > 1) {
+                    names.add(source.substring(name.getStart(0), name.getEnd(name.size() - 2)));
+                }
+            } else {
+                tokenizer.position++;
+            }
+        }
+        return tokenizer.failed ? null : ReferenceIndex.withoutPrefixes(names);
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    List<QualifiedName> getNames() {
+        return names;
+    }
+
+    String getPackageName() {
+        return (packageName == null) ? null : packageName.toString();
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    Range getRange(int start, int end) {
+        return new Range(getPosition(start), getPosition(end - 1));
+    }
+
+    // lines are counted like TextPatch does, with one column per char
+    private Position getPosition(int offset) {
+        int line = 1;
+        int lineStart = 0;
+        for (int i = 0; i < offset; i++) {
+            char c = source.charAt(i);
+            if ((c == '\n') || ((c == '\r') && ((i + 1 >= source.length()) || (source.charAt(i + 1) != '\n')))) {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        return new Position(line, offset - lineStart + 1);
+    }
+
+    static class QualifiedName {
+        private final String source;
+        private int[] starts = new int[4];
+        private int[] ends = new int[4];
+        private int size;
+
+        private QualifiedName(String source) {
+            this.source = source;
+        }
+
+        private void add(int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getStart(int segment) {
+            return starts[segment];
+        }
+
+        int getEnd(int segment) {
+            return ends[segment];
+        }
+
+        @Override public String toString() {
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                name.append((i == 0) ? "" : ".").append(source, starts[i], ends[i]);
+            }
+            return name.toString();
+        }
+    }
+
+    private static class Tokenizer {
+        private final String source;
+        private int position;
+        private boolean failed;
+
+        private Tokenizer(String source) {
+            this.source = source;
+            this.position = source.startsWith("\uFEFF") ? 1 : 0;
+        }
+
+        // false at the end of the file or when the header can't be tokenized
+        private boolean skipBlanks() {
+            while (position < source.length()) {
+                char c = source.charAt(position);
+                if (Character.isWhitespace(c)) {
+                    position++;
+                } else if (source.startsWith("//", position)) {
+                    int end = position;
+                    while ((end < source.length()) && (source.charAt(end) != '\n') && (source.charAt(end) != '\r')) {
+                        end++;
+                    }
+                    if (!skipComment(end)) {
+                        return false;
+                    }
+                } else if (source.startsWith("/*", position)) {
+                    int end = source.indexOf("*/", position + 2);
+                    if (end < 0) {
+                        failed = true;
+                        return false;
+                    }
+                    if (!skipComment(end + 2)) {
+                        return false;
+                    }
+                } else if (c == '\\') {
+                    // unicode escapes may hide any token
+                    failed = true;
+                    return false;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean skipComment(int end) {
+            int escape = source.indexOf("\\u", position);
+            if ((escape >= 0) && (escape < end)) {
+                failed = true;
+                return false;
+            }
+            position = end;
+            return true;
+        }
+
+        private boolean skip(char c) {
+            if (skipBlanks() && (source.charAt(position) == c)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean skipKeyword(String keyword) {
+            if (!skipBlanks()) {
+                return false;
+            }
+            int end = identifierEnd();
+            if ((end - position == keyword.length()) && source.startsWith(keyword, position)) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private QualifiedName readName(boolean asterisk) {
+            QualifiedName name = new QualifiedName(source);
+            do {
+                if (!skipBlanks()) {
+                    return null;
+                }
+                if (asterisk && (name.size() > 0) && (source.charAt(position) == '*')) {
+                    position++;
+                    return name;
+                }
+                int end = identifierEnd();
+                if (end == position) {
+                    return null;
+                }
+                name.add(position, end);
+                position = end;
+            } while (skip('.'));
+            return name;
+        }
+
+        // the segments separated by dots from the current identifier, up to the first token that isn't an identifier
+        private QualifiedName readQualifiedName() {
+            QualifiedName name = new QualifiedName(source);
+            do {
+                int end = identifierEnd();
+                if (end == position) {
+                    break;
+                }
+                name.add(position, end);
+                position = end;
+            } while (skip('.') && skipBlanks());
+            return name;
+        }
+
+        // false when the literal isn't terminated on its line or contains a unicode escape
+        private boolean skipLiteral(char quote) {
+            position++;
+            while (position < source.length()) {
+                char c = source.charAt(position);
+                if ((c == '\\') && (position + 1 < source.length()) && (source.charAt(position + 1) != 'u')) {
+                    position += 2;
+                } else if (c == quote) {
+                    position++;
+                    return true;
+                } else if ((c == '\\') || (c == '\n') || (c == '\r')) {
+                    break;
+                } else {
+                    position++;
+                }
+            }
+            failed = true;
+            return false;
+        }
+
+        private int identifierEnd() {
+            int end = position;
+            if ((end < source.length()) && Character.isJavaIdentifierStart(source.charAt(end))) {
+                end++;
+                while ((end < source.length()) && Character.isJavaIdentifierPart(source.charAt(end))) {
+                    end++;
+                }
+            }
+            return end;
+        }
+    }
+}
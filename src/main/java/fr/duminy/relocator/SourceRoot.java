@@ -0,0 +1,80 @@
+package fr.duminy.relocator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+class SourceRoot {
+    private final Path directory;
+    private final Path outputDirectory;
+
+    SourceRoot(Path directory, Path outputDirectory) {
+        this.directory = directory;
+        this.outputDirectory = outputDirectory;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    Path getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    boolean isInPlace() {
+        return outputDirectory == null;
+    }
+
+    SourceRoot withOutputDirectory(Path outputDirectory) {
+        return new SourceRoot(directory, outputDirectory);
+    }
+
+    Path resolveOutput(Path relativePath) {
+        return (isInPlace() ? directory : outputDirectory).resolve(relativePath);
+    }
+
+    Path getUnchangedOutput(Path file) {
+        return isInPlace() ? file : outputDirectory.resolve(directory.relativize(file));
+    }
+
+    Path publishUnchanged(Path file, FileTransaction transaction) throws IOException {
+        if (isInPlace()) {
+            return file;
+        }
+
+        Path output = getUnchangedOutput(file);
+        transaction.stageLink(file, output);
+        return output;
+    }
+
+    // the index of the source root whose directory (or output directory) holds the file, followed by the path of the
+    // file relative to it, or the absolute path of a file outside of the source roots
+    static String key(List<SourceRoot> sourceRoots, Path file, boolean output) {
+        file = file.toAbsolutePath().normalize();
+        int index = -1;
+        Path base = null;
+        for (int i = 0; i < sourceRoots.size(); i++) {
+            Path directory = sourceRoots.get(i).getBase(output);
+            if (file.startsWith(directory) && ((base == null) || (directory.getNameCount() > base.getNameCount()))) {
+                index = i;
+                base = directory;
+            }
+        }
+        return ((base == null) ? file.toString() : index + "/" + base.relativize(file)).replace('\\', '/');
+    }
+
+    static Path resolveKey(List<SourceRoot> sourceRoots, String key, boolean output) {
+        int slash = key.indexOf('/');
+        if ((slash > 0) && key.substring(0, slash).chars().allMatch(Character::isDigit)) {
+            int index = Integer.parseInt(key.substring(0, slash));
+            if (index < sourceRoots.size()) {
+                return sourceRoots.get(index).getBase(output).resolve(key.substring(slash + 1)).normalize();
+            }
+        }
+        return sourceRoots.get(0).getDirectory().getFileSystem().getPath(key);
+    }
+
+    private Path getBase(boolean output) {
+        return ((output && !isInPlace()) ? outputDirectory : directory).toAbsolutePath().normalize();
+    }
+}
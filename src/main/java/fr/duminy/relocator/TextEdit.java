@@ -0,0 +1,27 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.Range;
+
+class TextEdit {
+    private final Range range;
+    private final Relocation relocation;
+    private final String replacement;
+
+    TextEdit(Range range, Relocation relocation, String replacement) {
+        this.range = range;
+        this.relocation = relocation;
+        this.replacement = replacement;
+    }
+
+    Range getRange() {
+        return range;
+    }
+
+    Relocation getRelocation() {
+        return relocation;
+    }
+
+    String getReplacement() {
+        return replacement;
+    }
+}
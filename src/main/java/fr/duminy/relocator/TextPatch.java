@@ -0,0 +1,99 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.Range;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Comparator.comparing;
+
+class TextPatch {
+    private final String source;
+    private final int[] starts;
+    private final int[] ends;
+    private final String[] replacements;
+
+    private TextPatch(String source, int[] starts, int[] ends, String[] replacements) {
+        this.source = source;
+        this.starts = starts;
+        this.ends = ends;
+        this.replacements = replacements;
+    }
+
+    static TextPatch create(String source, List<TextEdit> edits) {
+        List<TextEdit> sortedEdits = new ArrayList<>(edits);
+        for (TextEdit edit : sortedEdits) {
+            if (edit.getRange() == null) {
+                return null;
+            }
+        }
+        sortedEdits.sort(comparing(edit -> edit.getRange().begin));
+
+        int[] starts = new int[sortedEdits.size()];
+        int[] ends = new int[sortedEdits.size()];
+        String[] replacements = new String[sortedEdits.size()];
+        int line = 1;
+        int lineStart = 0;
+        for (int i = 0; i < sortedEdits.size(); i++) {
+            TextEdit edit = sortedEdits.get(i);
+            Range range = edit.getRange();
+            while (line < range.begin.line) {
+                lineStart = nextLineStart(source, lineStart);
+                line++;
+            }
+            int start = offset(source, lineStart, range.begin);
+            int endLineStart = lineStart;
+            for (int endLine = line; endLine < range.end.line; endLine++) {
+                endLineStart = nextLineStart(source, endLineStart);
+            }
+            int end = offset(source, endLineStart, range.end) + 1;
+            if ((start < 0) || (end > source.length()) || (end <= start) || ((i > 0) && (start < ends[i - 1]))) {
+                return null;
+            }
+
+            String replacement = edit.getReplacement();
+            String sourcePackage = edit.getRelocation().getSourcePackage();
+            if (source.startsWith(sourcePackage, start) && replacement.endsWith(
+                source.substring(start + sourcePackage.length(), end))) {
+                end = start + sourcePackage.length();
+                replacement = edit.getRelocation().getTargetPackage();
+            }
+            starts[i] = start;
+            ends[i] = end;
+            replacements[i] = replacement;
+        }
+        return new TextPatch(source, starts, ends, replacements);
+    }
+
+    private static int nextLineStart(String source, int lineStart) {
+        for (int i = lineStart; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\n') {
+                return i + 1;
+            }
+            if (c == '\r') {
+                return ((i + 1 < source.length()) && (source.charAt(i + 1) == '\n')) ? i + 2 : i + 1;
+            }
+        }
+        return source.length();
+    }
+
+    private static int offset(String source, int lineStart, Position position) {
+        return Math.min(lineStart + position.column - 1, source.length());
+    }
+
+    String apply() {
+        int length = source.length();
+        for (int i = 0; i < starts.length; i++) {
+            length += replacements[i].length() - (ends[i] - starts[i]);
+        }
+        StringBuilder result = new StringBuilder(length);
+        int position = 0;
+        for (int i = 0; i < starts.length; i++) {
+            result.append(source, position, starts[i]).append(replacements[i]);
+            position = ends[i];
+        }
+        return result.append(source, position, source.length()).toString();
+    }
+}
@@ -0,0 +1,81 @@
+package fr.duminy.relocator;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+
+class WorkerPool implements AutoCloseable {
+    private static final int QUEUED_TASKS_PER_WORKER = 4;
+
+    private final ExecutorService executor;
+    private final int capacity;
+    private final Semaphore permits;
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    WorkerPool(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be >= 1 : " + workerCount);
+        }
+        executor = (workerCount == 1) ? null : newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "relocator-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        capacity = workerCount * (QUEUED_TASKS_PER_WORKER + 1);
+        permits = new Semaphore(capacity);
+    }
+
+    void submit(Runnable task) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+
+        acquire(1);
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void await() {
+        if (executor != null) {
+            acquire(capacity);
+            permits.release(capacity);
+        }
+        Throwable t = error.getAndSet(null);
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new RelocatorException(t);
+        }
+    }
+
+    private void acquire(int count) {
+        try {
+            permits.acquire(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RelocatorException(e);
+        }
+    }
+
+    @Override public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
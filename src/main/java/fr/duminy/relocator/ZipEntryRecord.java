@@ -0,0 +1,48 @@
+package fr.duminy.relocator;
+
+class ZipEntryRecord {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int ENCRYPTED_FLAG = 1;
+    static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+    static final int UTF8_FLAG = 1 << 11;
+
+    int versionMadeBy;
+    int versionNeeded;
+    int flags;
+    int method;
+    int dosTime;
+    long crc;
+    long compressedSize;
+    long size;
+    String name;
+    byte[] localExtra;
+    byte[] centralExtra;
+    byte[] comment;
+    int internalAttributes;
+    long externalAttributes;
+    long localHeaderOffset;
+
+    ZipEntryRecord copy(String name) {
+        ZipEntryRecord copy = new ZipEntryRecord();
+        copy.versionMadeBy = versionMadeBy;
+        copy.versionNeeded = versionNeeded;
+        copy.flags = flags;
+        copy.method = method;
+        copy.dosTime = dosTime;
+        copy.crc = crc;
+        copy.compressedSize = compressedSize;
+        copy.size = size;
+        copy.name = name;
+        copy.localExtra = localExtra;
+        copy.centralExtra = centralExtra;
+        copy.comment = comment;
+        copy.internalAttributes = internalAttributes;
+        copy.externalAttributes = externalAttributes;
+        return copy;
+    }
+
+    boolean isDirectory() {
+        return name.endsWith("/");
+    }
+}
@@ -0,0 +1,199 @@
+package fr.duminy.relocator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static fr.duminy.relocator.ZipEntryRecord.*;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+class ZipReader implements Closeable {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final Path archive;
+    private final FileChannel channel;
+    private final List<ZipEntryRecord> entries = new ArrayList<>();
+    private byte[] comment;
+
+    ZipReader(Path archive) throws IOException {
+        this.archive = archive;
+        this.channel = FileChannel.open(archive, READ);
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    List<ZipEntryRecord> getEntries() {
+        return entries;
+    }
+
+    byte[] getComment() {
+        return comment;
+    }
+
+    byte[] readContent(ZipEntryRecord entry) throws IOException {
+        if ((entry.flags & ENCRYPTED_FLAG) != 0) {
+            throw new RelocatorException("Encrypted entry " + entry.name + " in " + archive);
+        }
+        byte[] data = read(getDataOffset(entry), toInt(entry.compressedSize)).array();
+        if (entry.method == STORED) {
+            return data;
+        }
+        if (entry.method != DEFLATED) {
+            throw new RelocatorException("Unsupported compression method " + entry.method + " for entry " + entry.name
+                                             + " in " + archive);
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream content = new ByteArrayOutputStream(toInt(entry.size));
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if ((count == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RelocatorException("Truncated entry " + entry.name + " in " + archive);
+                }
+                content.write(buffer, 0, count);
+            }
+            return content.toByteArray();
+        } catch (DataFormatException e) {
+            throw new RelocatorException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    void copyData(ZipEntryRecord entry, WritableByteChannel target) throws IOException {
+        long position = getDataOffset(entry);
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            long count = channel.transferTo(position, remaining, target);
+            if (count <= 0) {
+                throw new RelocatorException("Truncated entry " + entry.name + " in " + archive);
+            }
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    byte[] getLocalExtra(ZipEntryRecord entry) throws IOException {
+        getDataOffset(entry);
+        return entry.localExtra;
+    }
+
+    private long getDataOffset(ZipEntryRecord entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new RelocatorException("Invalid local header for entry " + entry.name + " in " + archive);
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        if (entry.localExtra == null) {
+            entry.localExtra = read(entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength, extraLength).array();
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = channel.size();
+        int tailSize = (int) Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(size - tailSize, tailSize);
+        int end = tailSize - END_SIZE;
+        while ((end >= 0) && (tail.getInt(end) != END_SIGNATURE)) {
+            end--;
+        }
+        if (end < 0) {
+            throw new RelocatorException("Not a zip archive : " + archive);
+        }
+
+        int entryCount = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & ZIP64_MAGIC;
+        long directoryOffset = tail.getInt(end + 16) & ZIP64_MAGIC;
+        comment = new byte[tail.getShort(end + 20) & 0xFFFF];
+        tail.position(end + END_SIZE);
+        tail.get(comment, 0, Math.min(comment.length, tail.remaining()));
+        if ((entryCount == 0xFFFF) || (directorySize == ZIP64_MAGIC) || (directoryOffset == ZIP64_MAGIC)) {
+            throw new RelocatorException("ZIP64 archives are not supported : " + archive);
+        }
+
+        ByteBuffer directory = read(directoryOffset, toInt(directorySize));
+        for (int i = 0; i < entryCount; i++) {
+            if (directory.getInt() != CENTRAL_HEADER_SIGNATURE) {
+                throw new RelocatorException("Invalid central directory in " + archive);
+            }
+            ZipEntryRecord entry = new ZipEntryRecord();
+            entry.versionMadeBy = directory.getShort() & 0xFFFF;
+            entry.versionNeeded = directory.getShort() & 0xFFFF;
+            entry.flags = directory.getShort() & 0xFFFF;
+            entry.method = directory.getShort() & 0xFFFF;
+            entry.dosTime = directory.getInt();
+            entry.crc = directory.getInt() & ZIP64_MAGIC;
+            entry.compressedSize = directory.getInt() & ZIP64_MAGIC;
+            entry.size = directory.getInt() & ZIP64_MAGIC;
+            int nameLength = directory.getShort() & 0xFFFF;
+            int extraLength = directory.getShort() & 0xFFFF;
+            int commentLength = directory.getShort() & 0xFFFF;
+            directory.getShort(); // disk number
+            entry.internalAttributes = directory.getShort() & 0xFFFF;
+            entry.externalAttributes = directory.getInt() & ZIP64_MAGIC;
+            entry.localHeaderOffset = directory.getInt() & ZIP64_MAGIC;
+            entry.name = new String(get(directory, nameLength), UTF_8);
+            entry.centralExtra = get(directory, extraLength);
+            entry.comment = get(directory, commentLength);
+            if ((entry.compressedSize == ZIP64_MAGIC) || (entry.size == ZIP64_MAGIC)
+                || (entry.localHeaderOffset == ZIP64_MAGIC)) {
+                throw new RelocatorException("ZIP64 archives are not supported : " + archive);
+            }
+            entries.add(entry);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new RelocatorException("Unexpected end of archive " + archive);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] get(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private int toInt(long size) {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new RelocatorException("Entry too large in " + archive);
+        }
+        return (int) size;
+    }
+
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,193 @@
+package fr.duminy.relocator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static fr.duminy.relocator.ZipEntryRecord.DATA_DESCRIPTOR_FLAG;
+import static fr.duminy.relocator.ZipEntryRecord.DEFLATED;
+import static fr.duminy.relocator.ZipEntryRecord.UTF8_FLAG;
+import static fr.duminy.relocator.ZipReader.*;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+class ZipWriter implements Closeable {
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+    private final Path archive;
+    // the archive is only replaced by a complete one
+    private final Path temporaryFile;
+    private final FileChannel channel;
+    private final List<ZipEntryRecord> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private byte[] comment = new byte[0];
+    private boolean finished;
+
+    ZipWriter(Path archive) throws IOException {
+        this.archive = archive;
+        Path directory = archive.toAbsolutePath().getParent();
+        this.temporaryFile = createTempFile(directory, "." + archive.getFileName(), ".tmp");
+        try {
+            this.channel = FileChannel.open(temporaryFile, TRUNCATE_EXISTING, WRITE);
+        } catch (IOException | RuntimeException e) {
+            deleteIfExists(temporaryFile);
+            throw e;
+        }
+    }
+
+    void setComment(byte[] comment) {
+        this.comment = comment;
+    }
+
+    void copy(ZipEntryRecord entry, ZipReader reader) throws IOException {
+        ZipEntryRecord copy = entry.copy(entry.name);
+        copy.localExtra = reader.getLocalExtra(entry);
+        writeLocalHeader(copy);
+        reader.copyData(entry, channel);
+    }
+
+    void write(ZipEntryRecord template, String name, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        ZipEntryRecord entry = template.copy(name);
+        entry.method = DEFLATED;
+        entry.versionNeeded = Math.max(entry.versionNeeded, 20);
+        entry.crc = crc.getValue();
+        entry.size = content.length;
+        entry.compressedSize = compressed.size();
+        writeLocalHeader(entry);
+        write(ByteBuffer.wrap(compressed.toByteArray()));
+    }
+
+    private void writeLocalHeader(ZipEntryRecord entry) throws IOException {
+        if (!names.add(entry.name)) {
+            throw new RelocatorException("Duplicate entry " + entry.name + " in " + archive);
+        }
+        entry.localHeaderOffset = channel.position();
+        if (entry.localHeaderOffset > MAX_OFFSET) {
+            throw new RelocatorException("ZIP64 archives are not supported : " + archive);
+        }
+        entry.flags &= ~DATA_DESCRIPTOR_FLAG;
+        byte[] name = entry.name.getBytes(UTF_8);
+        if (name.length != entry.name.length()) {
+            // tells the readers that the name isn't encoded in CP437
+            entry.flags |= UTF8_FLAG;
+        }
+        byte[] extra = (entry.localExtra == null) ? new byte[0] : entry.localExtra;
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + name.length + extra.length).order(LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) entry.versionNeeded);
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) name.length);
+        header.putShort((short) extra.length);
+        header.put(name).put(extra);
+        header.flip();
+        write(header);
+        entries.add(entry);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // writes the central directory and replaces the archive, otherwise closing the writer discards the entries
+    void finish() throws IOException {
+        try {
+            long directoryOffset = channel.position();
+            for (ZipEntryRecord entry : entries) {
+                byte[] name = entry.name.getBytes(UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + name.length + entry.centralExtra.length
+                                                            + entry.comment.length).order(LITTLE_ENDIAN);
+                header.putInt(CENTRAL_HEADER_SIGNATURE);
+                header.putShort((short) entry.versionMadeBy);
+                header.putShort((short) entry.versionNeeded);
+                header.putShort((short) entry.flags);
+                header.putShort((short) entry.method);
+                header.putInt(entry.dosTime);
+                header.putInt((int) entry.crc);
+                header.putInt((int) entry.compressedSize);
+                header.putInt((int) entry.size);
+                header.putShort((short) name.length);
+                header.putShort((short) entry.centralExtra.length);
+                header.putShort((short) entry.comment.length);
+                header.putShort((short) 0);
+                header.putShort((short) entry.internalAttributes);
+                header.putInt((int) entry.externalAttributes);
+                header.putInt((int) entry.localHeaderOffset);
+                header.put(name).put(entry.centralExtra).put(entry.comment);
+                header.flip();
+                write(header);
+            }
+            long directorySize = channel.position() - directoryOffset;
+            if ((entries.size() >= 0xFFFF) || (channel.position() > MAX_OFFSET)) {
+                throw new RelocatorException("ZIP64 archives are not supported : " + archive);
+            }
+
+            ByteBuffer end = ByteBuffer.allocate(END_SIZE + comment.length).order(LITTLE_ENDIAN);
+            end.putInt(END_SIGNATURE);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) entries.size());
+            end.putShort((short) entries.size());
+            end.putInt((int) directorySize);
+            end.putInt((int) directoryOffset);
+            end.putShort((short) comment.length);
+            end.put(comment);
+            end.flip();
+            write(end);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        try {
+            move(temporaryFile, archive, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            move(temporaryFile, archive, REPLACE_EXISTING);
+        }
+        finished = true;
+    }
+
+    @Override public void close() throws IOException {
+        if (!finished) {
+            try {
+                channel.close();
+            } finally {
+                deleteIfExists(temporaryFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.nio.file.Files.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClassFileRelocatorTest {
+    @DisplayName("relocates class names, descriptors and signatures")
+    @Test void relocate() throws Exception {
+        Map<String, byte[]> classes = compile(
+            "package package1;\n\npublic class Class1 {}",
+            "package package1;\n\nimport java.util.List;\n\npublic class Class2 {\n"
+            + "    public Class1[] field = new Class1[0];\n"
+            + "    public static final String NAME = \"package1/Class1\";\n"
+            + "    public List<? extends Class1> method(Class1 parameter) { return null; }\n"
+            + "    public static class Inner {}\n}");
+        RelocationIndex index = new RelocationIndex(singletonList(new PackageRelocation("package1", "package2.sub")));
+
+        Map<String, byte[]> relocated = new HashMap<>();
+        for (byte[] bytes : classes.values()) {
+            ClassFileRelocator relocator = new ClassFileRelocator(index, bytes);
+            assertThat(relocator.relocate()).isTrue();
+            relocated.put(relocator.getClassName().replace('/', '.'), relocator.getBytes());
+        }
+
+        assertThat(relocated).containsOnlyKeys("package2.sub.Class1", "package2.sub.Class2",
+                                               "package2.sub.Class2$Inner");
+        Class<?> class2 = new ClassLoader(null) {
+            @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] bytes = relocated.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        }.loadClass("package2.sub.Class2");
+        assertThat(class2.getField("field").getType().getName()).isEqualTo("[Lpackage2.sub.Class1;");
+        assertThat(class2.getField("NAME").get(null)).isEqualTo("package1/Class1");
+        Method method = class2.getMethod("method", class2.getClassLoader().loadClass("package2.sub.Class1"));
+        assertThat(method.getGenericReturnType().getTypeName())
+            .isEqualTo("java.util.List<? extends package2.sub.Class1>");
+        assertThat(class2.getDeclaredClasses()).extracting(Class::getName).containsExactly("package2.sub.Class2$Inner");
+    }
+
+    @DisplayName("relocates descriptors shared with string constants")
+    @Test void relocate_descriptor_shared_with_string() throws Exception {
+        Map<String, byte[]> classes = compile(
+            "package package1;\n\npublic class Class1 {}",
+            "package package1;\n\npublic class Class2 {\n"
+            + "    public Class1 field;\n"
+            + "    public static final String DESCRIPTOR = \"Lpackage1/Class1;\";\n}");
+        RelocationIndex index = new RelocationIndex(singletonList(new PackageRelocation("package1", "package2")));
+
+        Map<String, byte[]> relocated = new HashMap<>();
+        for (byte[] bytes : classes.values()) {
+            ClassFileRelocator relocator = new ClassFileRelocator(index, bytes);
+            assertThat(relocator.relocate()).isTrue();
+            relocated.put(relocator.getClassName().replace('/', '.'), relocator.getBytes());
+        }
+
+        Class<?> class2 = new ClassLoader(null) {
+            @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] bytes = relocated.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        }.loadClass("package2.Class2");
+        assertThat(class2.getField("field").getType().getName()).isEqualTo("package2.Class1");
+        assertThat(class2.getField("DESCRIPTOR").get(null)).isEqualTo("Lpackage1/Class1;");
+    }
+
+    @DisplayName("doesn't modify classes without matching references")
+    @Test void unchanged() throws IOException {
+        byte[] bytes = compile("package package3;\n\npublic class Class3 { String s = \"package1.Class1\"; }")
+            .values().iterator().next();
+        RelocationIndex index = new RelocationIndex(singletonList(new PackageRelocation("package1", "package2")));
+
+        ClassFileRelocator relocator = new ClassFileRelocator(index, bytes);
+
+        assertThat(relocator.relocate()).isFalse();
+        assertThat(relocator.getBytes()).isSameAs(bytes);
+        assertThat(relocator.getClassName()).isEqualTo("package3/Class3");
+    }
+
+    static Map<String, byte[]> compile(String... sources) throws IOException {
+        Path directory = createTempDirectory("");
+        String[] arguments = new String[sources.length + 2];
+        arguments[0] = "-d";
+        arguments[1] = directory.toString();
+        for (int i = 0; i < sources.length; i++) {
+            String className = sources[i].substring(sources[i].indexOf("public class ") + 13).split("\\W")[0];
+            Path file = write(directory.resolve(className + ".java"), asList(sources[i].split("\n")));
+            arguments[i + 2] = file.toString();
+        }
+        assertThat(ToolProvider.getSystemJavaCompiler().run(null, null, null, arguments)).isZero();
+
+        Map<String, byte[]> classes = new HashMap<>();
+        try (Stream<Path> files = walk(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.toString().endsWith(".class")) {
+                    classes.put(directory.relativize(file).toString(), readAllBytes(file));
+                }
+            }
+        }
+        return classes;
+    }
+}
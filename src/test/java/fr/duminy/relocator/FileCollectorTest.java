@@ -0,0 +1,77 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.createFile;
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.Paths.get;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileCollectorTest {
+    private final FileCollector fileCollector = new FileCollector();
+
+    @DisplayName("collects java files")
+    @Test void java_files() throws IOException {
+        Path directory = createTempDirectory("");
+        Path javaFile = createFile(createDirectories(directory.resolve("package1")).resolve("Class1.java"));
+        createFile(directory.resolve("package1").resolve("file.txt"));
+
+        assertThat(fileCollector.collectFiles(directory)).containsExactly(javaFile.toAbsolutePath());
+    }
+
+    @DisplayName("prunes excluded directories")
+    @Test void excluded_directories() throws IOException {
+        Path directory = createTempDirectory("");
+        Path javaFile = createFile(createDirectories(directory.resolve("package1")).resolve("Class1.java"));
+        createFile(createDirectories(directory.resolve("target").resolve("package1")).resolve("Class1.java"));
+        createFile(createDirectories(directory.resolve("module").resolve("build")).resolve("Class1.java"));
+        fileCollector.addExclude("target");
+        fileCollector.addExclude("build");
+
+        assertThat(fileCollector.collectFiles(directory)).containsExactly(javaFile.toAbsolutePath());
+    }
+
+    @DisplayName("tells excluded directories and their subdirectories")
+    @Test void is_excluded() throws IOException {
+        Path directory = createTempDirectory("");
+        fileCollector.addExclude("target");
+
+        assertThat(fileCollector.isExcluded(directory, directory)).isFalse();
+        assertThat(fileCollector.isExcluded(directory, directory.resolve("package1"))).isFalse();
+        assertThat(fileCollector.isExcluded(directory, directory.resolve("target"))).isTrue();
+        assertThat(fileCollector.isExcluded(directory, directory.resolve("target").resolve("package1"))).isTrue();
+    }
+
+    @DisplayName("collects included files")
+    @Test void included_files() throws IOException {
+        Path directory = createTempDirectory("");
+        Path packageDirectory = createDirectories(directory.resolve("package1"));
+        createFile(packageDirectory.resolve("Class1.java"));
+        Path textFile = createFile(packageDirectory.resolve("file.txt"));
+        fileCollector.addInclude("**.txt");
+
+        assertThat(fileCollector.collectFiles(directory)).containsExactly(textFile.toAbsolutePath());
+    }
+
+    @DisplayName("never collects sources nor class files as resources")
+    @Test void resources() throws IOException {
+        Path directory = createTempDirectory("");
+        Path packageDirectory = createDirectories(directory.resolve("package1"));
+        Path javaFile = createFile(packageDirectory.resolve("Class1.java"));
+        createFile(packageDirectory.resolve("Class1.class"));
+        Path textFile = createFile(packageDirectory.resolve("file.txt"));
+        fileCollector.addResourceInclude("**");
+
+        assertThat(fileCollector.collectFiles(directory))
+            .containsExactlyInAnyOrder(javaFile.toAbsolutePath(), textFile.toAbsolutePath());
+        assertThat(fileCollector.isResource(get("package1", "file.txt"))).isTrue();
+        assertThat(fileCollector.isResource(get("package1", "Class1.java"))).isFalse();
+        assertThat(fileCollector.isResource(get("package1", "Class1.class"))).isFalse();
+        assertThat(fileCollector.isResource(get("module-info.java"))).isTrue();
+    }
+}
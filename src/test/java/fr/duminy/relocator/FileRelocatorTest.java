@@ -7,12 +7,16 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 
 import static com.github.javaparser.JavaParser.parse;
+import static java.nio.file.Files.createDirectories;
 import static java.nio.file.Files.createTempDirectory;
 import static java.nio.file.Files.write;
 import static java.util.Arrays.stream;
+import static java.util.Collections.singletonList;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.joining;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -22,6 +26,8 @@ class FileRelocatorTest {
     private static final Function<String, String> PACKAGE1_TO_PACKAGE2 = source -> source
         .replace("package1", "package2");
     private static final Function<String, String> IDENTITY = identity();
+    private static final Function<String, String> ORG_ACME_TO_SHADED_ACME = source -> source
+        .replace("org.acme.", "shaded.acme.");
 
     private final FileRelocator fileRelocator = new FileRelocator();
 
@@ -98,6 +104,107 @@ class FileRelocatorTest {
         }
     }
 
+    @Nested class ClassResolution {
+        private final ClassRelocation CLASS1_TO_PACKAGE2 = new ClassRelocation("package1", "Class1", "package2");
+        private final Path sourceDirectory;
+
+        ClassResolution() throws IOException {
+            sourceDirectory = createTempDirectory("");
+        }
+
+        @DisplayName("modifies class1 import")
+        @Test void import_() throws Exception {
+            relocateResolved("package userpackage;\n\n"
+                             + "import package1.Class1;\n"
+                             + "import package1.Class2;\n\n"
+                             + "public class Class1User {\n\n"
+                             + "    private Class1 class1 = new Class1();\n"
+                             + "}\n", "import package2.Class1;", "import package1.Class2;",
+                             "private Class1 class1 = new Class1();");
+        }
+
+        @DisplayName("modifies qualified references to class1")
+        @Test void qualified_reference() throws Exception {
+            relocateResolved("package userpackage;\n\n"
+                             + "public class Class1User {\n\n"
+                             + "    private package1.Class1.Inner inner = package1.Class1.create(package1.Class2.C);\n"
+                             + "}\n",
+                             "private package2.Class1.Inner inner = package2.Class1.create(package1.Class2.C);");
+        }
+
+        @DisplayName("qualifies class1 referenced from its package")
+        @Test void same_package() throws Exception {
+            relocateResolved("package package1;\n\n"
+                             + "public class Class1User extends Class1 {\n\n"
+                             + "    public void user(Object Class1) {\n"
+                             + "        Class2.staticMethod(Class1.toString());\n"
+                             + "    }\n"
+                             + "}\n", "public class Class1User extends package2.Class1 {",
+                             "Class2.staticMethod(Class1.toString());");
+        }
+
+        @DisplayName("qualifies class1 outside the scope of a variable with the same name")
+        @Test void variable_scope() throws Exception {
+            relocateResolved("package package1;\n\n"
+                             + "public class Class1User {\n\n"
+                             + "    public void user(boolean b) {\n"
+                             + "        if (b) {\n"
+                             + "            Object Class1 = null;\n"
+                             + "            Class2.staticMethod(Class1.toString());\n"
+                             + "        }\n"
+                             + "        Class2.staticMethod(Class1.staticMethod());\n"
+                             + "    }\n\n"
+                             + "    public void user2() {\n"
+                             + "        Class1.staticMethod();\n"
+                             + "        Consumer<Object> c = Class1 -> Class1.hashCode();\n"
+                             + "    }\n"
+                             + "}\n", "Class2.staticMethod(Class1.toString());",
+                             "Class2.staticMethod(package2.Class1.staticMethod());",
+                             "package2.Class1.staticMethod();", "Class1 -> Class1.hashCode()");
+        }
+
+        @DisplayName("qualifies class1 imported on demand, unless a class of the package has the same name")
+        @Test void on_demand_import() throws Exception {
+            String source = "package userpackage;\n\n"
+                            + "import package1.*;\n\n"
+                            + "public class Class1User {\n\n"
+                            + "    private Class1 class1;\n"
+                            + "}\n";
+            relocateResolved(source, "import package1.*;", "private package2.Class1 class1;");
+
+            write(createDirectories(sourceDirectory.resolve("userpackage")).resolve("Class1.java"), new byte[0]);
+            relocateResolved(source, "private Class1 class1;");
+        }
+
+        @DisplayName("qualifies only the name of a generic class1 in patched source")
+        @Test void patched_generic_type() throws Exception {
+            String source = "package package1;\n\n"
+                            + "public class Class1User {\n"
+                            + "    private Class1<String> class1 = new Class1<>();\n"
+                            + "}\n";
+            FileRelocator fileRelocator = new FileRelocator();
+            fileRelocator.addRelocation(CLASS1_TO_PACKAGE2);
+            List<TextEdit> edits = new ArrayList<>();
+
+            fileRelocator.relocate(parse(source), edits, ClassResolver.create(fileRelocator.getRelocations(),
+                                                                              singletonList(sourceDirectory)));
+
+            assertThat(TextPatch.create(source, edits).apply())
+                .contains("    private package2.Class1<String> class1 = new package2.Class1<>();\n");
+        }
+
+        private void relocateResolved(String source, String... expectedLines) throws IOException {
+            FileRelocator fileRelocator = new FileRelocator();
+            fileRelocator.addRelocation(CLASS1_TO_PACKAGE2);
+            CompilationUnit compilationUnit = parse(source);
+
+            fileRelocator.relocate(compilationUnit, null, ClassResolver.create(fileRelocator.getRelocations(),
+                                                                               singletonList(sourceDirectory)));
+
+            assertThat(compilationUnit.toString()).contains(expectedLines);
+        }
+    }
+
     @Nested class PackageRelocation_ {
         private final PackageRelocation PACKAGE1_TO_PACKAGE2_ = new PackageRelocation("package1", "package2");
 
@@ -202,6 +309,56 @@ class FileRelocatorTest {
         }
     }
 
+    @Nested class MultiSegmentPackageRelocation {
+        private final PackageRelocation ORG_ACME_TO_SHADED_ACME_ = new PackageRelocation("org.acme", "shaded.acme");
+
+        @DisplayName("modify class reference")
+        @Test void class_reference() throws Exception {
+            relocate(ORG_ACME_TO_SHADED_ACME_, "package userpackage;\n\n"
+                                               + "public class Class1User {\n\n"
+                                               + "    private org.acme.Class1 class1 = new org.acme.Class1();\n"
+                                               + "}\n", ORG_ACME_TO_SHADED_ACME);
+        }
+
+        @DisplayName("modify static method reference")
+        @Test void static_method_reference() throws Exception {
+            relocate(ORG_ACME_TO_SHADED_ACME_, "package userpackage;\n\n"
+                                               + "public class Class1User {\n\n"
+                                               + "    public void user() {\n"
+                                               + "        org.acme.Class1.staticMethod(org.acme.Class1.FIELD);\n"
+                                               + "    }\n"
+                                               + "}\n", ORG_ACME_TO_SHADED_ACME);
+        }
+
+        @DisplayName("modify annotation and type argument")
+        @Test void annotation_and_type_argument() throws Exception {
+            relocate(ORG_ACME_TO_SHADED_ACME_, "package userpackage;\n\n"
+                                               + "@org.acme.Annotation1\n"
+                                               + "public class Class1User {\n\n"
+                                               + "    private java.util.List<org.acme.Class1> list;\n"
+                                               + "}\n", ORG_ACME_TO_SHADED_ACME);
+        }
+
+        @DisplayName("doesn't modify package with same prefix")
+        @Test void package_with_same_prefix() throws Exception {
+            relocate(ORG_ACME_TO_SHADED_ACME_, "package userpackage;\n\n"
+                                               + "import org.acmeX.Class1;\n\n"
+                                               + "public class Class1User {\n\n"
+                                               + "    private org.Class1 class1 = org.acmeX.Class1.create();\n"
+                                               + "}\n", IDENTITY);
+        }
+    }
+
+    @DisplayName("modify references matching a pattern")
+    @Test void pattern_relocation() throws Exception {
+        relocate(new PatternRelocation("org.*.internal", "shaded.$1"),
+                 "package userpackage;\n\n"
+                 + "import org.acme.internal.Class1;\n\n"
+                 + "public class Class1User {\n\n"
+                 + "    private org.acme.internal.sub.Class2 class2 = org.other.Class3.create();\n"
+                 + "}\n", source -> source.replace("org.acme.internal", "shaded.acme"));
+    }
+
     private void relocate(Relocation relocation, String source, Function<String, String> expectedResultFunction)
         throws IOException {
         fileRelocator.addRelocation(relocation);
@@ -0,0 +1,161 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static java.nio.file.Files.*;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+class FileTransactionTest {
+    private final FileTransaction transaction = new FileTransaction();
+
+    @DisplayName("publishes staged files and deletes moved originals")
+    @Test void commit() throws IOException {
+        Path directory = createTempDirectory("");
+        Path original = write(createDirectories(directory.resolve("package1")).resolve("Class1.java"),
+                              "long original content".getBytes());
+        Path output = directory.resolve("package2").resolve("Class1.java");
+        Path rewritten = write(directory.resolve("package1").resolve("Class2.java"),
+                               "long original content".getBytes());
+
+        transaction.stage(original, output, "moved".getBytes());
+        transaction.stage(rewritten, rewritten, "short".getBytes());
+        assertThat(output).doesNotExist();
+        transaction.commit();
+
+        assertThat(original).doesNotExist();
+        assertThat(output).hasContent("moved");
+        assertThat(rewritten).hasContent("short");
+        assertThat(transactionFiles(directory)).isZero();
+    }
+
+    @DisplayName("restores all files when a file can't be published")
+    @Test void rollback() throws IOException {
+        Path directory = createTempDirectory("");
+        Path original = write(createDirectories(directory.resolve("package1")).resolve("Class1.java"),
+                              "original1".getBytes());
+        Path output = directory.resolve("package2").resolve("Class1.java");
+        Path rewritten = write(directory.resolve("package1").resolve("Class2.java"), "original2".getBytes());
+        transaction.stage(original, output, "moved".getBytes());
+        transaction.stage(rewritten, rewritten, "rewritten".getBytes());
+        try (Stream<Path> files = list(directory.resolve("package1"))) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (FileTransaction.isTransactionFile(file)) {
+                    delete(file);
+                }
+            }
+        }
+
+        Throwable thrown = catchThrowable(transaction::commit);
+
+        assertThat(thrown).isInstanceOf(NoSuchFileException.class);
+        assertThat(original).hasContent("original1");
+        assertThat(rewritten).hasContent("original2");
+        assertThat(output).doesNotExist();
+        assertThat(transactionFiles(directory)).isZero();
+    }
+
+    @DisplayName("links unchanged files, deletes stale outputs and rejects outputs staged twice")
+    @Test void outputs() throws IOException {
+        Path directory = createTempDirectory("");
+        Path file = write(directory.resolve("Class1.java"), "unchanged".getBytes());
+        Path outputDirectory = createDirectories(directory.resolve("output"));
+        Path linkedOutput = write(outputDirectory.resolve("Class1.java"), "previous".getBytes());
+        Path staleOutput = write(outputDirectory.resolve("Class2.java"), "stale".getBytes());
+        Path keptOutput = write(outputDirectory.resolve("Class3.java"), "previous".getBytes());
+
+        transaction.stageLink(file, linkedOutput);
+        transaction.stageDeletion(staleOutput);
+        transaction.stageDeletion(keptOutput);
+        transaction.stage(null, keptOutput, "kept".getBytes());
+        Throwable thrown = catchThrowable(() -> transaction.stage(null, keptOutput, "other".getBytes()));
+        assertThat(linkedOutput).hasContent("previous");
+        transaction.commit();
+
+        assertThat(thrown).isInstanceOf(FileAlreadyExistsException.class);
+        assertThat(linkedOutput).hasContent("unchanged");
+        assertThat(staleOutput).doesNotExist();
+        assertThat(keptOutput).hasContent("kept");
+        assertThat(transactionFiles(directory)).isZero();
+    }
+
+    @DisplayName("restores the backups of a commit interrupted before all files were published")
+    @Test void recover_interrupted_commit() throws IOException {
+        Path directory = createTempDirectory("");
+        Path original = directory.resolve("Class1.java");
+        write(directory.resolve(".Class1.java.relocator-bak"), "original".getBytes());
+        Path published = write(directory.resolve("Class2.java"), "published".getBytes());
+        Path temporaryFile = write(directory.resolve(".Class3.java.relocator-tmp"), "staged".getBytes());
+        Path logFile = write(directory.resolve(FileTransaction.LOG_FILE_NAME), (
+            "backup\t" + original + "\n"
+            + "publish\t" + directory.resolve(".Class2.java.relocator-tmp") + "\t" + published + "\n"
+            + "publish\t" + temporaryFile + "\t" + directory.resolve("Class3.java") + "\n").getBytes());
+
+        new FileTransaction(logFile).recover();
+
+        assertThat(original).hasContent("original");
+        assertThat(published).doesNotExist();
+        assertThat(directory.resolve("Class3.java")).doesNotExist();
+        assertThat(transactionFiles(directory)).isZero();
+    }
+
+    @DisplayName("deletes the backups of a commit interrupted after all files were published")
+    @Test void recover_committed() throws IOException {
+        Path directory = createTempDirectory("");
+        Path original = directory.resolve("Class1.java");
+        write(directory.resolve(".Class1.java.relocator-bak"), "original".getBytes());
+        Path published = write(directory.resolve("Class2.java"), "published".getBytes());
+        Path logFile = write(directory.resolve(FileTransaction.LOG_FILE_NAME), (
+            "backup\t" + original + "\n"
+            + "publish\t" + directory.resolve(".Class2.java.relocator-tmp") + "\t" + published + "\n"
+            + "committed\n").getBytes());
+
+        new FileTransaction(logFile).recover();
+
+        assertThat(original).doesNotExist();
+        assertThat(published).hasContent("published");
+        assertThat(transactionFiles(directory)).isZero();
+    }
+
+    @DisplayName("deletes the files staged before a crash, with the directories created for them")
+    @Test void recover_staged() throws IOException {
+        Path directory = createTempDirectory("");
+        Path original = write(directory.resolve("Class1.java"), "original".getBytes());
+        Path logFile = directory.resolve(FileTransaction.LOG_FILE_NAME);
+        Path output = directory.resolve("package2").resolve("sub").resolve("Class1.java");
+        new FileTransaction(logFile).stage(original, output, "modified".getBytes());
+        // the process crashes before the commit
+
+        new FileTransaction(logFile).recover(singletonList(directory));
+
+        assertThat(original).hasContent("original");
+        assertThat(directory.resolve("package2")).doesNotExist();
+        assertThat(transactionFiles(directory)).isZero();
+    }
+
+    @DisplayName("deletes the log once the staged files are discarded")
+    @Test void rollback_staged() throws IOException {
+        Path directory = createTempDirectory("");
+        Path original = write(directory.resolve("Class1.java"), "original".getBytes());
+        FileTransaction transaction = new FileTransaction(directory.resolve(FileTransaction.LOG_FILE_NAME));
+        transaction.stage(original, directory.resolve("Class2.java"), "modified".getBytes());
+
+        transaction.rollback();
+
+        assertThat(transactionFiles(directory)).isZero();
+    }
+
+    private static long transactionFiles(Path directory) throws IOException {
+        try (Stream<Path> files = walk(directory)) {
+            return files.filter(FileTransaction::isTransactionFile).count();
+        }
+    }
+}
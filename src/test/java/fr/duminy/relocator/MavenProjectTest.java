@@ -0,0 +1,33 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.Files.write;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MavenProjectTest {
+    @Test
+    void findSourceDirectories() throws IOException {
+        Path project = createTempDirectory("");
+        writePom(project, "<modules><module>module1</module><module>module2</module></modules>");
+        Path module1 = createDirectories(project.resolve("module1"));
+        writePom(module1, "");
+        Path module1Main = createDirectories(module1.resolve("src/main/java"));
+        Path module1Test = createDirectories(module1.resolve("src/test/java"));
+        Path module2 = createDirectories(project.resolve("module2"));
+        writePom(module2, "<build><sourceDirectory>src</sourceDirectory></build>");
+        Path module2Main = createDirectories(module2.resolve("src"));
+
+        assertThat(MavenProject.findSourceDirectories(project))
+            .containsExactly(module1Main.toAbsolutePath(), module1Test.toAbsolutePath(), module2Main.toAbsolutePath());
+    }
+
+    private void writePom(Path directory, String content) throws IOException {
+        write(directory.resolve("pom.xml"), ("<project>" + content + "</project>").getBytes());
+    }
+}
@@ -0,0 +1,26 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MemoryBudgetTest {
+    private final MemoryBudget budget = new MemoryBudget(64 * 1024);
+
+    @DisplayName("reserves memory proportionally to the file size")
+    @Test void reserve() {
+        int reserved = budget.reserve(1024);
+
+        assertThat(reserved).isEqualTo(MemoryBudget.HEAP_BYTES_PER_FILE_BYTE);
+        assertThat(budget.getAvailable()).isEqualTo(budget.getCapacity() - reserved);
+        budget.release(reserved);
+        assertThat(budget.getAvailable()).isEqualTo(budget.getCapacity());
+    }
+
+    @DisplayName("reserves the whole budget for files larger than the budget")
+    @Test void large_file() {
+        assertThat(budget.reserve(1024 * 1024)).isEqualTo(budget.getCapacity());
+        assertThat(budget.tryReserve(0)).isZero();
+    }
+}
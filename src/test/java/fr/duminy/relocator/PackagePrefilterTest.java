@@ -0,0 +1,77 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createTempFile;
+import static java.nio.file.Files.write;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PackagePrefilterTest {
+    private final PackagePrefilter prefilter = new PackagePrefilter(Arrays.asList("package1", "org.acme", "acme.b"));
+
+    @DisplayName("matches package declaration")
+    @Test void package_declaration() {
+        assertThat(matches("package package1;\n\npublic class Class1 {\n}\n")).isTrue();
+    }
+
+    @DisplayName("matches overlapping package names")
+    @Test void overlapping_names() {
+        assertThat(matches("import org.acme.b.Class1;")).isTrue();
+        assertThat(matches("import acme.b.Class1;")).isTrue();
+    }
+
+    @DisplayName("matches after a partial match")
+    @Test void partial_match() {
+        assertThat(matches("org.acmorg.acme")).isTrue();
+    }
+
+    @DisplayName("doesn't match other packages")
+    @Test void other_packages() {
+        assertThat(matches("package package2;\n\nimport org.acm.Class1;\n\npublic class Class1 {\n}\n")).isFalse();
+    }
+
+    @DisplayName("doesn't match anything without package names")
+    @Test void no_package_names() {
+        assertThat(new PackagePrefilter(emptyList()).matches(ByteBuffer.wrap("package1".getBytes(UTF_8))))
+            .isFalse();
+    }
+
+    @DisplayName("matches large files")
+    @Test void large_file() throws IOException {
+        StringBuilder source = new StringBuilder();
+        while (source.length() < 100_000) {
+            source.append("// filler comment\n");
+        }
+        Path file = createTempFile("", ".java");
+        write(file, source.toString().getBytes(UTF_8));
+        assertThat(prefilter.matches(file)).isFalse();
+
+        write(file, source.append("import package1.Class1;").toString().getBytes(UTF_8));
+        assertThat(prefilter.matches(file)).isTrue();
+    }
+
+    @DisplayName("matches package names encoded with the charset of the files")
+    @Test void charset() {
+        PackagePrefilter prefilter = PackagePrefilter.create(
+            singletonList(new PackageRelocation("p\u00e4ckage1", "package2")), false, ISO_8859_1);
+
+        assertThat(prefilter.matches(ByteBuffer.wrap("import p\u00e4ckage1.Class1;".getBytes(ISO_8859_1)))).isTrue();
+        assertThat(PackagePrefilter.create(singletonList(new PackageRelocation("package1", "package2")), false,
+                                           UTF_16)).isNull();
+    }
+
+    private boolean matches(String source) {
+        return prefilter.matches(ByteBuffer.wrap(source.getBytes(UTF_8)));
+    }
+}
@@ -0,0 +1,88 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.JavaParser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.Files.write;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReferenceIndexTest {
+    @DisplayName("collects the qualified names walked by the relocator")
+    @Test void collect_references() {
+        String[] references = ReferenceIndex.collectReferences(JavaParser.parse(
+            "package package1.sub;\n\n"
+            + "import package2.Class2;\n"
+            + "import package3.*;\n\n"
+            + "@package4.Annotation4\n"
+            + "public class Class1 {\n"
+            + "    private package5.Class5 field = package6.Class6.FIELD;\n"
+            + "    private String string = field.toString();\n"
+            + "}\n"));
+
+        assertThat(references).containsExactlyInAnyOrder("package1.sub", "package2.Class2", "package3", "package4",
+                                                          "package5", "package6.Class6");
+    }
+
+    @DisplayName("finds the files unaffected by a relocation")
+    @Test void unaffected_files() throws IOException {
+        Path directory = createTempDirectory("");
+        Path indexFile = directory.resolve("index");
+        Path class1 = write(directory.resolve("Class1.java"), "package package1;\n\nclass Class1 {}".getBytes());
+        Path class2 = write(directory.resolve("Class2.java"),
+                            "package package2;\n\nclass Class2 extends package1.Class1 {}".getBytes());
+        ReferenceIndex index = ReferenceIndex.load(indexFile, sourceRoots(directory), relocations("package3"), false);
+        index.record(class1, JavaParser.parse(class1));
+        index.record(class2, JavaParser.parse(class2));
+        index.save();
+
+        index = ReferenceIndex.load(indexFile, sourceRoots(directory), relocations("package1"), false);
+
+        assertThat(index.isUnaffected(class1)).isFalse();
+        assertThat(index.isUnaffected(class2)).isFalse();
+        index = ReferenceIndex.load(indexFile, sourceRoots(directory), relocations("package2"), false);
+        assertThat(index.isUnaffected(class1)).isTrue();
+        assertThat(index.isUnaffected(class2)).isFalse();
+        write(class1, "package package1;\n\nclass Class1 { int field; }".getBytes());
+        assertThat(index.isUnaffected(class1)).isFalse();
+    }
+
+    @DisplayName("keys the files by source directory")
+    @Test void source_directories() throws IOException {
+        Path directory1 = createTempDirectory("");
+        Path directory2 = createTempDirectory("");
+        Path indexFile = directory1.resolveSibling(directory1.getFileName() + ".index");
+        Path class1 = write(directory1.resolve("Class1.java"), "package package1;\n\nclass Class1 {}".getBytes());
+        Path class2 = write(directory2.resolve("Class1.java"), "package package2;\n\nclass Class1 {}".getBytes());
+        ReferenceIndex index = ReferenceIndex.load(indexFile, sourceRoots(directory1, directory2),
+                                                   relocations("package3"), false);
+        index.record(class1, JavaParser.parse(class1));
+        index.save();
+
+        index = ReferenceIndex.load(indexFile, sourceRoots(directory1, directory2), relocations("package3"), false);
+        assertThat(index.isUnaffected(class1)).isTrue();
+        assertThat(index.isUnaffected(class2)).isFalse();
+        index = ReferenceIndex.load(indexFile, sourceRoots(directory2, directory1), relocations("package3"), false);
+        assertThat(index.isUnaffected(class1)).isFalse();
+        assertThat(index.isUnaffected(class2)).isFalse();
+    }
+
+    private static List<SourceRoot> sourceRoots(Path... directories) {
+        List<SourceRoot> sourceRoots = new ArrayList<>();
+        for (Path directory : directories) {
+            sourceRoots.add(new SourceRoot(directory, null));
+        }
+        return sourceRoots;
+    }
+
+    private static RelocationIndex relocations(String sourcePackage) {
+        return new RelocationIndex(singletonList(new PackageRelocation(sourcePackage, "target")));
+    }
+}
@@ -0,0 +1,103 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RelocationIndexTest {
+    private static final PackageRelocation A_TO_X = new PackageRelocation("a", "x");
+    private static final PackageRelocation A_B_TO_Y = new PackageRelocation("a.b", "y");
+    private static final ClassRelocation A_B_CLASS1_TO_Z = new ClassRelocation("a.b", "Class1", "z");
+
+    @DisplayName("finds relocation of package and sub packages")
+    @Test void package_and_sub_packages() {
+        RelocationIndex index = new RelocationIndex(asList(A_B_TO_Y));
+
+        assertThat(index.find("a.b", "")).isSameAs(A_B_TO_Y);
+        assertThat(index.find("a.b.Class1", "")).isSameAs(A_B_TO_Y);
+        assertThat(index.find("a.b.c.Class1", "")).isSameAs(A_B_TO_Y);
+    }
+
+    @DisplayName("doesn't find relocation of other packages")
+    @Test void other_packages() {
+        RelocationIndex index = new RelocationIndex(asList(A_B_TO_Y));
+
+        assertThat(index.find("a", "")).isNull();
+        assertThat(index.find("a.bc.Class1", "")).isNull();
+        assertThat(index.find("c.a.b.Class1", "")).isNull();
+        assertThat(index.find("", "")).isNull();
+    }
+
+    @DisplayName("keeps first match")
+    @Test void first_match() {
+        assertThat(new RelocationIndex(asList(A_TO_X, A_B_TO_Y)).find("a.b.Class1", "")).isSameAs(A_TO_X);
+        assertThat(new RelocationIndex(asList(A_B_TO_Y, A_TO_X)).find("a.b.Class1", "")).isSameAs(A_B_TO_Y);
+    }
+
+    @DisplayName("filters class relocation by class name")
+    @Test void class_relocation() {
+        RelocationIndex index = new RelocationIndex(asList(A_B_CLASS1_TO_Z, A_TO_X));
+
+        assertThat(index.find("a.b.Class1", "Class1")).isSameAs(A_B_CLASS1_TO_Z);
+        assertThat(index.find("a.b.Class1", "Class2")).isSameAs(A_TO_X);
+    }
+
+    @DisplayName("finds relocation among many")
+    @Test void many_relocations() {
+        List<Relocation> relocations = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            relocations.add(new PackageRelocation("org.acme.module" + i, "shaded.module" + i));
+        }
+        RelocationIndex index = new RelocationIndex(relocations);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(index.find("org.acme.module" + i + ".Class1", "")).isSameAs(relocations.get(i));
+        }
+        assertThat(index.find("org.acme.module1000.Class1", "")).isNull();
+    }
+
+    @DisplayName("resolves captures of pattern relocations")
+    @Test void pattern_relocation() {
+        RelocationIndex index = new RelocationIndex(asList(
+            new PackageRelocation("com.acme.core.internal", "com.acme.core.impl"),
+            new PatternRelocation("com.acme.*.internal", "com.acme.shaded.$1.internal")));
+
+        Relocation relocation = index.find("com.acme.module1.internal.sub.Class1", "");
+        assertThat(relocation.getSourcePackage()).isEqualTo("com.acme.module1.internal");
+        assertThat(relocation.getTargetPackage()).isEqualTo("com.acme.shaded.module1.internal");
+        assertThat(index.find("com.acme.module1.internal.Class2", "")).isSameAs(relocation);
+        assertThat(index.find("com.acme.core.internal.Class1", "").getTargetPackage()).isEqualTo("com.acme.core.impl");
+        assertThat(index.find("com.acme.module1.api.Class1", "")).isNull();
+        assertThat(index.find("com.acme.Class1.internal", "")).isNull();
+    }
+
+    @DisplayName("skips excluded packages of pattern relocations")
+    @Test void pattern_relocation_excludes() {
+        RelocationIndex index = new RelocationIndex(asList(
+            new PatternRelocation("com.acme.*", "shaded.$1", "com.acme.legacy", "com.acme.*.test"),
+            new PackageRelocation("com", "org")));
+
+        assertThat(index.find("com.acme.module1.Class1", "").getTargetPackage()).isEqualTo("shaded.module1");
+        assertThat(index.find("com.acme.legacy.Class1", "").getSourcePackage()).isEqualTo("com");
+        assertThat(index.find("com.acme.module1.test.Class1", "").getSourcePackage()).isEqualTo("com");
+    }
+
+    @DisplayName("finds pattern relocation among many")
+    @Test void many_pattern_relocations() {
+        List<Relocation> relocations = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            relocations.add(new PatternRelocation("org.acme.module" + i + ".*.internal", "shaded" + i + ".$1"));
+        }
+        RelocationIndex index = new RelocationIndex(relocations);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(index.find("org.acme.module" + i + ".api.internal.Class1", "").getTargetPackage())
+                .isEqualTo("shaded" + i + ".api");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RelocationJournalTest {
+    private static final List<Relocation> RELOCATIONS = singletonList(new PackageRelocation("package1", "package2"));
+
+    @DisplayName("finds the files committed by a previous run")
+    @Test void finished_files() throws IOException {
+        Path directory = createTempDirectory("");
+        Path journalFile = directory.resolveSibling(directory.getFileName() + ".journal");
+        Path file = write(directory.resolve("Class1.java"), "package package1;".getBytes());
+        Path output = write(directory.resolve("Class2.java"), "package package2;".getBytes());
+        try (RelocationJournal journal = RelocationJournal.open(journalFile, directory, RELOCATIONS, false)) {
+            journal.add(file, output, output);
+            journal.checkpoint();
+        }
+        write(journalFile, "interrupted line".getBytes(), APPEND);
+
+        try (RelocationJournal journal = RelocationJournal.open(journalFile, directory, RELOCATIONS, false)) {
+            assertThat(journal.getFinishedOutput(file)).isEqualTo(output);
+            assertThat(journal.getFinishedOutput(output)).isEqualTo(output);
+        }
+        assertThat(new String(readAllBytes(journalFile))).doesNotContain("interrupted line");
+
+        write(output, "package package3;".getBytes());
+        try (RelocationJournal journal = RelocationJournal.open(journalFile, directory, RELOCATIONS, false)) {
+            assertThat(journal.getFinishedOutput(file)).isNull();
+            assertThat(journal.getFinishedOutput(output)).isNull();
+        }
+    }
+
+    @DisplayName("ignores the files written to the journal but not committed")
+    @Test void uncommitted_files() throws IOException {
+        Path directory = createTempDirectory("");
+        Path journalFile = directory.resolveSibling(directory.getFileName() + ".journal");
+        Path file = write(directory.resolve("Class1.java"), "package package1;".getBytes());
+        Path stagedFile = write(directory.resolve(".Class2.java.tmp"), "package package2;".getBytes());
+        Path output = directory.resolve("Class2.java");
+        try (RelocationJournal journal = RelocationJournal.open(journalFile, directory, RELOCATIONS, false)) {
+            journal.add(file, output, stagedFile);
+            journal.checkpoint();
+        }
+
+        try (RelocationJournal journal = RelocationJournal.open(journalFile, directory, RELOCATIONS, false)) {
+            assertThat(journal.getFinishedOutput(file)).isNull();
+        }
+        move(stagedFile, output);
+        try (RelocationJournal journal = RelocationJournal.open(journalFile, directory, RELOCATIONS, false)) {
+            assertThat(journal.getFinishedOutput(file)).isEqualTo(output);
+        }
+    }
+
+    @DisplayName("starts over when the relocations change")
+    @Test void other_relocations() throws IOException {
+        Path directory = createTempDirectory("");
+        Path journalFile = directory.resolveSibling(directory.getFileName() + ".journal");
+        Path file = write(directory.resolve("Class1.java"), "package package1;".getBytes());
+        try (RelocationJournal journal = RelocationJournal.open(journalFile, directory, RELOCATIONS, false)) {
+            journal.add(file, file, file);
+            journal.checkpoint();
+        }
+
+        try (RelocationJournal journal = RelocationJournal.open(
+            journalFile, directory, singletonList(new PackageRelocation("package1", "package3")), false)) {
+            assertThat(journal.getFinishedOutput(file)).isNull();
+        }
+    }
+}
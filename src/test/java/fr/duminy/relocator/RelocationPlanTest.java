@@ -0,0 +1,97 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RelocationPlanTest {
+    @DisplayName("orders rules by specificity")
+    @Test void specificity() {
+        RelocationIndex index = compile(singletonList(asList(new PackageRelocation("a", "x"),
+                                                             new PackageRelocation("a.b", "y"))));
+
+        assertThat(relocate(index, "a.b.Class1", "")).isEqualTo("y.Class1");
+        assertThat(relocate(index, "a.c.Class1", "")).isEqualTo("x.c.Class1");
+    }
+
+    @DisplayName("composes chained stages")
+    @Test void chained_stages() {
+        RelocationIndex index = compile(asList(singletonList(new PackageRelocation("a.b", "x.y")),
+                                               singletonList(new PackageRelocation("x.y.impl", "z"))));
+
+        assertThat(relocate(index, "a.b.Class1", "")).isEqualTo("x.y.Class1");
+        assertThat(relocate(index, "a.b.impl.Class1", "")).isEqualTo("z.Class1");
+        assertThat(relocate(index, "x.y.impl.Class1", "")).isEqualTo("z.Class1");
+        assertThat(relocate(index, "x.y.Class1", "")).isEqualTo("x.y.Class1");
+    }
+
+    @DisplayName("composes stages shadowed by a previous stage")
+    @Test void shadowed_stages() {
+        RelocationIndex index = compile(asList(singletonList(new PackageRelocation("a", "x")),
+                                               singletonList(new PackageRelocation("a.b", "y"))));
+
+        assertThat(relocate(index, "a.b.Class1", "")).isEqualTo("x.b.Class1");
+    }
+
+    @DisplayName("composes class relocation with package relocation")
+    @Test void class_relocation() {
+        RelocationIndex index = compile(asList(singletonList(new PackageRelocation("a", "b")),
+                                               singletonList(new ClassRelocation("b", "Class1", "z"))));
+
+        assertThat(relocate(index, "a.Other", "Class1")).isEqualTo("z.Other");
+        assertThat(relocate(index, "a.Other", "Class2")).isEqualTo("b.Other");
+    }
+
+    @DisplayName("reports conflicts")
+    @Test void conflicts() {
+        RelocationPlan plan = new RelocationPlan(singletonList(asList(new PackageRelocation("a", "x"),
+                                                                      new PackageRelocation("a", "y"))));
+
+        assertThat(plan.getProblems()).containsExactly("stage 0 : a -> y conflicts with a -> x");
+        assertThatThrownBy(plan::compile).isInstanceOf(RelocatorException.class);
+    }
+
+    @DisplayName("reports invalid rules")
+    @Test void invalid_rules() {
+        RelocationPlan plan = new RelocationPlan(singletonList(asList(new PackageRelocation("", "x"),
+                                                                      new PackageRelocation("a", "x..y"),
+                                                                      new ClassRelocation("a", "1", "x"))));
+
+        assertThat(plan.getProblems()).hasSize(3);
+    }
+
+    @DisplayName("reports invalid patterns")
+    @Test void invalid_patterns() {
+        RelocationPlan plan = new RelocationPlan(singletonList(asList(new PatternRelocation("a.*", "x.$2"),
+                                                                      new PatternRelocation("a.b*", "x"),
+                                                                      new PatternRelocation("b.*", "x", "c.d"),
+                                                                      new PatternRelocation("c.*", "x.$1", "c.d"))));
+
+        assertThat(plan.getProblems()).hasSize(3);
+    }
+
+    @DisplayName("orders exact rules before patterns")
+    @Test void pattern_specificity() {
+        RelocationIndex index = compile(singletonList(asList(new PatternRelocation("a.*", "x.$1"),
+                                                             new PackageRelocation("a.b", "y"))));
+
+        assertThat(relocate(index, "a.b.Class1", "")).isEqualTo("y.Class1");
+        assertThat(relocate(index, "a.c.Class1", "")).isEqualTo("x.c.Class1");
+    }
+
+    private static RelocationIndex compile(List<List<Relocation>> stages) {
+        return new RelocationIndex(new RelocationPlan(stages).compile());
+    }
+
+    private static String relocate(RelocationIndex index, String name, String classSimpleName) {
+        Relocation relocation = index.find(name, classSimpleName);
+        return (relocation == null) ? name :
+            relocation.getTargetPackage() + name.substring(relocation.getSourcePackage().length());
+    }
+}
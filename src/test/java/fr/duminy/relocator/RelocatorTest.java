@@ -1,5 +1,8 @@
 package fr.duminy.relocator;
 
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ParserConfiguration.LanguageLevel;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.comments.LineComment;
 import org.junit.jupiter.api.Test;
@@ -9,16 +12,35 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static java.lang.Boolean.TRUE;
 import static java.lang.Thread.sleep;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_16;
 import static java.nio.file.Files.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.assertj.core.api.Assertions.entry;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -46,7 +68,7 @@ class RelocatorTest {
         Path sourceDirectory = createTempDirectory("");
         StringBuilder expectedFileContent = new StringBuilder();
         Path sourceFile = createClassFile(sourceDirectory, "Class1", expectedFileContent);
-        when(fileCollector.collectFiles(sourceDirectory)).thenReturn(singletonList(sourceFile));
+        collectFiles(sourceDirectory, singletonList(sourceFile));
         when(fileRelocator.relocate(argThat(eqCompilationUnitFor(sourceFile))))
             .then(modifyCompilationUnitPackage(expectedFileContent, "package2"));
         Relocator relocator = new Relocator(sourceDirectory, fileRelocator, fileCollector);
@@ -58,6 +80,799 @@ class RelocatorTest {
         assertThat(targetFile).hasContent(expectedFileContent.toString());
     }
 
+    @Test
+    void relocate_in_parallel() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        List<Path> files = new ArrayList<>();
+        List<StringBuilder> expectedFileContents = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            StringBuilder expectedFileContent = new StringBuilder();
+            files.add(createClassFile(sourceDirectory, "Class" + i, expectedFileContent));
+            expectedFileContents.add(expectedFileContent);
+        }
+        collectFiles(sourceDirectory, files);
+        when(fileRelocator.relocate(any())).then(modifyCompilationUnit("modification"));
+        Relocator relocator = new Relocator(sourceDirectory, fileRelocator, fileCollector);
+        relocator.setWorkerCount(4);
+
+        relocator.relocate();
+
+        verify(fileRelocator, times(files.size())).relocate(any());
+        for (int i = 0; i < files.size(); i++) {
+            assertThat(files.get(i)).hasContent(expectedFileContents.get(i) + "\n// modification");
+        }
+    }
+
+    @Test
+    void relocate_reports_failures_per_file() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        StringBuilder expectedFileContent = new StringBuilder();
+        Path invalidFile = createClassFile(sourceDirectory, "Class1", new StringBuilder());
+        write(invalidFile, "invalid java code".getBytes());
+        Path validFile = createClassFile(sourceDirectory, "Class2", expectedFileContent);
+        collectFiles(sourceDirectory, asList(invalidFile, validFile));
+        when(fileRelocator.relocate(argThat(eqCompilationUnitFor(validFile))))
+            .then(modifyCompilationUnit("modification", expectedFileContent));
+        Relocator relocator = new Relocator(sourceDirectory, fileRelocator, fileCollector);
+
+        Throwable thrown = catchThrowable(relocator::relocate);
+
+        assertThat(thrown).isInstanceOf(RelocatorException.class);
+        assertThat(((RelocatorException) thrown).getFailures()).containsOnlyKeys(invalidFile);
+        assertThat(validFile).hasContent(expectedFileContent.toString());
+    }
+
+    @Test
+    void relocate_with_prefilter_skips_files_without_source_package() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path file = createClassFile(sourceDirectory, "Class1", new StringBuilder());
+        collectFiles(sourceDirectory, singletonList(file));
+        when(fileRelocator.getRelocations()).thenReturn(singletonList(new PackageRelocation("package3", "package2")));
+        Relocator relocator = new Relocator(sourceDirectory, fileRelocator, fileCollector);
+        relocator.setPrefilterEnabled(true);
+
+        relocator.relocate();
+
+        verify(fileRelocator).getRelocations();
+        verifyNoMoreInteractions(fileRelocator);
+    }
+
+    @Test
+    void relocate_with_manifest_skips_unchanged_files() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path manifestFile = sourceDirectory.resolveSibling(sourceDirectory.getFileName() + ".manifest");
+        Path unchangedFile = createClassFile(sourceDirectory, "Class1", new StringBuilder());
+        Path changedFile = createClassFile(sourceDirectory, "Class2", new StringBuilder());
+        collectFiles(sourceDirectory, asList(unchangedFile, changedFile));
+        when(fileRelocator.relocate(any())).then(modifyCompilationUnit("modification"));
+        Relocator relocator = new Relocator(sourceDirectory, fileRelocator, fileCollector);
+        relocator.setManifest(manifestFile);
+        relocator.relocate();
+        write(changedFile, "package package1;\n\npublic class Class2 {\n    int field;\n}".getBytes());
+        clearInvocations(fileRelocator);
+
+        relocator.relocate();
+
+        verify(fileRelocator).relocate(argThat(eqCompilationUnitFor(changedFile)));
+        verify(fileRelocator, never()).relocate(argThat(eqCompilationUnitFor(unchangedFile)));
+        assertThat(manifestFile).exists();
+    }
+
+    @Test
+    void relocate_preserves_formatting() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        String source = "package package1;\r\n\r\n"
+                        + "import  package1.Class2 ;\r\n"
+                        + "/* comment */ public class Class1 {\r\n"
+                        + "\tprivate package1.Class2   field = new package1.Class2( );\r\n"
+                        + "\tvoid method() { package1.Class2.staticMethod(); }\r\n"
+                        + "}";
+        Path sourceFile = write(packageDirectory.resolve("Class1.java"), source.getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2.longer"));
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        relocator.relocate();
+
+        Path targetFile = sourceDirectory.resolve("package2").resolve("longer").resolve("Class1.java");
+        assertThat(sourceFile).doesNotExist();
+        assertThat(targetFile).hasContent(source.replace("package1", "package2.longer"));
+    }
+
+    @Test
+    void relocate_preserves_formatting_without_parsing_unaffected_bodies() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        // the body isn't valid java, it would fail to parse
+        String source = "package package1;\n\nimport package1.Class2;\nimport package3.Class3;\n\n"
+                        + "public class Class1 { void method() { int i = ; } }";
+        write(packageDirectory.resolve("Class1.java"), source.getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.addRelocation(new ClassRelocation("package3", "Class3", "package4"));
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        relocator.relocate();
+
+        assertThat(sourceDirectory.resolve("package2").resolve("Class1.java"))
+            .hasContent(source.replace("package1", "package2"));
+    }
+
+    @Test
+    void relocate_with_class_resolution_modifies_references_from_other_files() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        write(packageDirectory.resolve("Class1.java"), "package package1;\n\npublic class Class1 {\n}".getBytes());
+        Path class2 = write(packageDirectory.resolve("Class2.java"),
+                            "package package1;\n\npublic class Class2 extends Class1 {\n}".getBytes());
+        Path class3 = write(createDirectories(sourceDirectory.resolve("package3")).resolve("Class3.java"),
+                            "package package3;\n\nimport package1.Class1;\n\npublic class Class3 extends Class1 {\n}"
+                                .getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new ClassRelocation("package1", "Class1", "package2"));
+        relocator.setClassResolutionEnabled(true);
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        relocator.relocate();
+
+        assertThat(sourceDirectory.resolve("package2").resolve("Class1.java"))
+            .hasContent("package package2;\n\npublic class Class1 {\n}");
+        assertThat(class2).hasContent("package package1;\n\npublic class Class2 extends package2.Class1 {\n}");
+        assertThat(class3)
+            .hasContent("package package3;\n\nimport package2.Class1;\n\npublic class Class3 extends Class1 {\n}");
+    }
+
+    @Test
+    void relocate_reports_metrics() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        write(packageDirectory.resolve("Class1.java"), "package package1;\n\npublic class Class1 {\n}".getBytes());
+        write(packageDirectory.resolve("Class2.java"), "package package1;\n\npublic class Class2 {\n}".getBytes());
+        Path otherDirectory = createDirectories(sourceDirectory.resolve("package3"));
+        write(otherDirectory.resolve("Class3.java"), "package package3;\n\npublic class Class3 {\n}".getBytes());
+        PackageRelocation relocation = new PackageRelocation("package1", "package2");
+        RelocationMetrics metrics = new RelocationMetrics();
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(relocation);
+        relocator.setPrefilterEnabled(true);
+        relocator.setListener(metrics);
+
+        relocator.relocate();
+
+        assertThat(metrics.getScannedFiles()).isEqualTo(2);
+        assertThat(metrics.getSkippedFiles()).isEqualTo(1);
+        assertThat(metrics.getModifiedFiles()).isEqualTo(2);
+        assertThat(metrics.getReadBytes()).isPositive();
+        assertThat(metrics.getWrittenBytes()).isPositive();
+        assertThat(metrics.getRelocationHits()).containsEntry(relocation, 2L);
+        assertThat(metrics.getPhaseDurationNanos(Phase.PARSE)).isPositive();
+    }
+
+    @Test
+    void relocate_reports_metrics_of_staged_relocations() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        write(packageDirectory.resolve("Class1.java"), "package package1;\n\npublic class Class1 {\n}".getBytes());
+        PackageRelocation stage1 = new PackageRelocation("package1", "package2");
+        PackageRelocation stage2 = new PackageRelocation("package2", "package3");
+        RelocationMetrics metrics = new RelocationMetrics();
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(stage1);
+        relocator.nextStage();
+        relocator.addRelocation(stage2);
+        relocator.setListener(metrics);
+
+        RelocationReport report = relocator.analyze();
+        relocator.relocate();
+
+        assertThat(report.getRelocationHits()).containsOnly(entry(stage1, 1), entry(stage2, 1));
+        assertThat(metrics.getRelocationHits()).containsOnly(entry(stage1, 2L), entry(stage2, 2L));
+        assertThat(sourceDirectory.resolve("package3").resolve("Class1.java")).exists();
+    }
+
+    @Test
+    void relocate_reports_metrics_of_pattern_relocations() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        write(createDirectories(sourceDirectory.resolve("package1").resolve("a")).resolve("Class1.java"),
+              "package package1.a;\n\npublic class Class1 {\n}".getBytes());
+        write(createDirectories(sourceDirectory.resolve("package1").resolve("b")).resolve("Class2.java"),
+              "package package1.b;\n\npublic class Class2 {\n}".getBytes());
+        PatternRelocation relocation = new PatternRelocation("package1.*", "package2.$1");
+        RelocationMetrics metrics = new RelocationMetrics();
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(relocation);
+        relocator.setListener(metrics);
+
+        RelocationReport report = relocator.analyze();
+
+        assertThat(report.getRelocationHits()).containsOnly(entry(relocation, 2));
+        assertThat(metrics.getRelocationHits()).containsOnly(entry(relocation, 2L));
+    }
+
+    @Test
+    void relocate_multiple_source_directories() throws IOException {
+        Path sourceDirectory1 = createTempDirectory("");
+        Path sourceDirectory2 = createTempDirectory("");
+        createClassFile(sourceDirectory1, "Class1", new StringBuilder());
+        createClassFile(sourceDirectory2, "Class2", new StringBuilder());
+        Relocator relocator = new Relocator(sourceDirectory1);
+        relocator.addSourceDirectory(sourceDirectory2);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setWorkerCount(2);
+
+        relocator.relocate();
+
+        assertThat(sourceDirectory1.resolve("package2").resolve("Class1.java")).exists();
+        assertThat(sourceDirectory2.resolve("package2").resolve("Class2.java")).exists();
+        assertThat(sourceDirectory1.resolve("package2").resolve("Class2.java")).doesNotExist();
+    }
+
+    @Test
+    void relocate_to_output_directory() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path outputDirectory = createTempDirectory("");
+        StringBuilder sourceContent = new StringBuilder();
+        Path sourceFile = createClassFile(sourceDirectory, "Class1", sourceContent);
+        Path otherDirectory = createDirectories(sourceDirectory.resolve("package3"));
+        Path unchangedFile = write(otherDirectory.resolve("Class3.java"), "package package3;\n\nclass Class3 {}".getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setOutputDirectory(outputDirectory);
+
+        relocator.relocate();
+
+        assertThat(sourceFile).hasContent(sourceContent.toString());
+        assertThat(outputDirectory.resolve("package1")).doesNotExist();
+        assertThat(outputDirectory.resolve("package2").resolve("Class1.java"))
+            .hasContent(sourceContent.toString().replace("package1", "package2"));
+        Path linkedFile = outputDirectory.resolve("package3").resolve("Class3.java");
+        assertThat(isSameFile(linkedFile, unchangedFile)).isTrue();
+    }
+
+    @Test
+    void relocate_to_output_directory_replaces_previous_outputs() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path outputDirectory = createTempDirectory("");
+        createClassFile(sourceDirectory, "Class1", new StringBuilder());
+        Path manifestFile = sourceDirectory.resolveSibling(sourceDirectory.getFileName() + ".manifest");
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setOutputDirectory(outputDirectory);
+        relocator.setManifest(manifestFile);
+        relocator.relocate();
+        relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package3"));
+        relocator.setOutputDirectory(outputDirectory);
+        relocator.setManifest(manifestFile);
+
+        relocator.relocate();
+
+        assertThat(outputDirectory.resolve("package2").resolve("Class1.java")).doesNotExist();
+        assertThat(outputDirectory.resolve("package3").resolve("Class1.java")).exists();
+    }
+
+    @Test
+    void relocate_with_manifest_to_another_output_directory() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        createClassFile(sourceDirectory, "Class1", new StringBuilder());
+        Path manifestFile = sourceDirectory.resolveSibling(sourceDirectory.getFileName() + ".manifest");
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setOutputDirectory(createTempDirectory(""));
+        relocator.setManifest(manifestFile);
+        relocator.relocate();
+        Path outputDirectory = createTempDirectory("");
+        relocator.setOutputDirectory(outputDirectory);
+
+        relocator.relocate();
+
+        assertThat(outputDirectory.resolve("package2").resolve("Class1.java")).exists();
+    }
+
+    @Test
+    void relocate_with_manifest_of_several_source_directories() throws IOException {
+        Path sourceDirectory1 = createTempDirectory("");
+        Path sourceDirectory2 = createTempDirectory("");
+        createClassFile(sourceDirectory1, "Class1", new StringBuilder());
+        Path manifestFile = sourceDirectory1.resolveSibling(sourceDirectory1.getFileName() + ".manifest");
+        Relocator relocator = new Relocator(sourceDirectory1);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setManifest(manifestFile);
+        relocator.relocate();
+        createClassFile(sourceDirectory2, "Class1", new StringBuilder());
+        relocator.addSourceDirectory(sourceDirectory2);
+
+        relocator.relocate();
+
+        assertThat(sourceDirectory2.resolve("package2").resolve("Class1.java")).exists();
+        assertThat(readAllLines(manifestFile)).filteredOn(line -> line.endsWith("Class1.java")).extracting(
+            line -> line.substring(line.lastIndexOf('\t') + 1))
+            .containsExactlyInAnyOrder("0/package2/Class1.java", "1/package2/Class1.java");
+    }
+
+    @Test
+    void relocate_to_output_directory_fails_on_collision() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path outputDirectory = createTempDirectory("");
+        createClassFile(sourceDirectory, "Class1", new StringBuilder());
+        write(createDirectories(sourceDirectory.resolve("package2")).resolve("Class1.java"),
+              "package package2;\n\nclass Class1 {}".getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setOutputDirectory(outputDirectory);
+
+        Throwable thrown = catchThrowable(relocator::relocate);
+
+        assertThat(((RelocatorException) thrown).getFailures()).hasSize(1);
+        assertThat(((RelocatorException) thrown).getFailures().values())
+            .allMatch(failure -> failure instanceof FileAlreadyExistsException);
+    }
+
+    @Test
+    void analyze_reports_changes_without_writing() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        StringBuilder sourceContent = new StringBuilder();
+        Path sourceFile = createClassFile(sourceDirectory, "Class1", sourceContent);
+        Path otherDirectory = createDirectories(sourceDirectory.resolve("package2"));
+        Path existingFile = write(otherDirectory.resolve("Class1.java"), "package package2;\n\nclass Class1 {}".getBytes());
+        Relocation relocation = new PackageRelocation("package1", "package2");
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(relocation);
+        relocator.setWorkerCount(2);
+
+        RelocationReport report = relocator.analyze();
+
+        assertThat(sourceFile).hasContent(sourceContent.toString());
+        assertThat(existingFile).hasContent("package package2;\n\nclass Class1 {}");
+        assertThat(report.getChanges()).hasSize(1);
+        RelocationReport.FileChange change = report.getMoves().get(0);
+        assertThat(change.getSource()).isEqualTo(sourceFile);
+        assertThat(change.getTarget()).isEqualTo(existingFile);
+        assertThat(change.getEdits()).extracting(RelocationReport.Edit::getLine).containsExactly(1);
+        assertThat(change.getEdits()).extracting(RelocationReport.Edit::getReplacement).containsExactly("package2");
+        assertThat(report.getRelocationHits()).containsEntry(relocation, 1);
+        assertThat(report.getCollisions()).containsOnlyKeys(existingFile.toAbsolutePath().normalize());
+        assertThat(report.getFailures()).isEmpty();
+        assertThat(report.isSafe()).isFalse();
+    }
+
+    @Test
+    void relocateArchive() throws IOException {
+        Path directory = createTempDirectory("");
+        Path archive = directory.resolve("sources.jar");
+        String resource = "some resource content, some resource content";
+        try (ZipOutputStream zip = new ZipOutputStream(newOutputStream(archive))) {
+            zip.setComment("archive comment");
+            zip.putNextEntry(new ZipEntry("package1/"));
+            zip.putNextEntry(new ZipEntry("package1/Class1.java"));
+            zip.write("package package1;\n\npublic class Class1 {\n}".getBytes());
+            zip.putNextEntry(new ZipEntry("package1/resource.txt"));
+            zip.write(resource.getBytes());
+            zip.putNextEntry(new ZipEntry("package3/Class3.java"));
+            zip.write("package package3;\n\nclass Class3 {}".getBytes());
+        }
+        Path output = directory.resolve("relocated.jar");
+        Relocator relocator = new Relocator(directory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        relocator.relocateArchive(archive, output);
+
+        try (ZipFile source = new ZipFile(archive.toFile()); ZipFile zip = new ZipFile(output.toFile())) {
+            assertThat(zip.stream().map(ZipEntry::getName))
+                .containsExactly("package1/", "package2/Class1.java", "package1/resource.txt", "package3/Class3.java");
+            assertThat(zip.getComment()).isEqualTo("archive comment");
+            assertThat(read(zip, "package2/Class1.java")).isEqualTo("package package2;\n\npublic class Class1 {\n}");
+            assertThat(read(zip, "package1/resource.txt")).isEqualTo(resource);
+            assertThat(read(zip, "package3/Class3.java")).isEqualTo("package package3;\n\nclass Class3 {}");
+            assertThat(zip.getEntry("package3/Class3.java").getCompressedSize())
+                .isEqualTo(source.getEntry("package3/Class3.java").getCompressedSize());
+        }
+    }
+
+    @Test
+    void relocateArchive_failure_leaves_no_output() throws IOException {
+        Path directory = createTempDirectory("");
+        Path archive = directory.resolve("sources.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(newOutputStream(archive))) {
+            zip.putNextEntry(new ZipEntry("package1/Class1.java"));
+            zip.write("package package1;\n\npublic class Class1 {\n}".getBytes());
+            zip.putNextEntry(new ZipEntry("package1/Class2.java"));
+            zip.write("package package1;\n\npublic class Class2 {".getBytes());
+        }
+        Path output = directory.resolve("relocated.jar");
+        Relocator relocator = new Relocator(directory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+
+        Throwable thrown = catchThrowable(() -> relocator.relocateArchive(archive, output));
+
+        assertThat(thrown).isInstanceOf(RelocatorException.class);
+        assertThat(output).doesNotExist();
+        try (Stream<Path> files = list(directory)) {
+            assertThat(files).containsExactly(archive);
+        }
+    }
+
+    @Test
+    void relocate_class_files() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Map<String, byte[]> classes = ClassFileRelocatorTest.compile("package package1;\n\npublic class Class1 {}");
+        Path classFile = createDirectories(sourceDirectory.resolve("package1")).resolve("Class1.class");
+        write(classFile, classes.get("package1/Class1.class"));
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setClassFilesEnabled(true);
+        relocator.setPrefilterEnabled(true);
+
+        relocator.relocate();
+
+        assertThat(classFile).doesNotExist();
+        ClassFileRelocator relocated = new ClassFileRelocator(new RelocationIndex(emptyList()),
+                                                              readAllBytes(sourceDirectory.resolve("package2")
+                                                                                          .resolve("Class1.class")));
+        relocated.relocate();
+        assertThat(relocated.getClassName()).isEqualTo("package2/Class1");
+    }
+
+    @Test
+    void relocate_resources() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        StringBuilder sourceContent = new StringBuilder();
+        createClassFile(sourceDirectory, "Class1", sourceContent);
+        Path servicesDirectory = createDirectories(sourceDirectory.resolve("META-INF").resolve("services"));
+        Path serviceFile = write(servicesDirectory.resolve("package1.Class1"), "package1.Class1\n".getBytes());
+        Path moduleInfo = write(sourceDirectory.resolve("module-info.java"),
+                                "module module1 {\n    provides package1.Class1 with package1.Class1;\n}".getBytes());
+        Path properties = write(sourceDirectory.resolve("config.properties"), "class=package1.Class1".getBytes());
+        Path unchangedFile = write(sourceDirectory.resolve("other.properties"), "class=package3.Class3".getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.addResourceInclude("META-INF/services/*");
+        relocator.addResourceInclude("*.properties");
+        relocator.setWorkerCount(2);
+
+        relocator.relocate();
+
+        assertThat(sourceDirectory.resolve("package2").resolve("Class1.java"))
+            .hasContent(sourceContent.toString().replace("package1", "package2"));
+        assertThat(serviceFile).doesNotExist();
+        assertThat(servicesDirectory.resolve("package2.Class1")).hasContent("package2.Class1");
+        assertThat(moduleInfo).hasContent("module module1 {\n    provides package2.Class1 with package2.Class1;\n}");
+        assertThat(properties).hasContent("class=package2.Class1");
+        assertThat(unchangedFile).hasContent("class=package3.Class3");
+    }
+
+    @Test
+    void relocate_publishes_included_files_unchanged() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        StringBuilder sourceContent = new StringBuilder();
+        createClassFile(sourceDirectory, "Class1", sourceContent);
+        Path textFile = write(createDirectories(sourceDirectory.resolve("d")).resolve("a.txt"),
+                              "key=package1.Class1".getBytes());
+        Path outputDirectory = createTempDirectory("");
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.addInclude("**.java");
+        relocator.addInclude("**.txt");
+        relocator.setOutputDirectory(outputDirectory);
+
+        relocator.relocate();
+
+        assertThat(outputDirectory.resolve("package2").resolve("Class1.java"))
+            .hasContent(sourceContent.toString().replace("package1", "package2"));
+        assertThat(textFile).hasContent("key=package1.Class1");
+        assertThat(outputDirectory.resolve("d").resolve("a.txt")).hasContent("key=package1.Class1");
+    }
+
+    @Test
+    void relocate_with_memory_budget() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        for (int i = 0; i < 10; i++) {
+            write(packageDirectory.resolve("Class" + i + ".java"),
+                  ("package package1;\n\npublic class Class" + i + " {\n}").getBytes());
+        }
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setWorkerCount(4);
+        relocator.setMemoryBudget(1);
+
+        relocator.relocate();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(sourceDirectory.resolve("package2").resolve("Class" + i + ".java"))
+                .hasContent("package package2;\n\npublic class Class" + i + " {\n}");
+        }
+    }
+
+    @Test
+    void watch_relocates_changed_files() throws Exception {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        write(packageDirectory.resolve("Class1.java"), "package package1;\n\npublic class Class1 {\n}".getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        try (RelocationWatcher watcher = relocator.watch(20)) {
+            Path targetDirectory = sourceDirectory.resolve("package2");
+            assertThat(targetDirectory.resolve("Class1.java")).hasContent("package package2;\n\npublic class Class1 {\n}");
+
+            write(packageDirectory.resolve("Class2.java"), "package package1;\n\npublic class Class2 {\n}".getBytes());
+            write(targetDirectory.resolve("Class3.java"),
+                  "package package2;\n\nclass Class3 extends package1.Class2 {\n}".getBytes());
+
+            Path class3 = targetDirectory.resolve("Class3.java");
+            for (int i = 0; (i < 500) && !(exists(targetDirectory.resolve("Class2.java"))
+                                           && new String(readAllBytes(class3)).contains("package2.Class2")); i++) {
+                Thread.sleep(20);
+            }
+            assertThat(watcher.isRunning()).isTrue();
+            assertThat(watcher.getFailures()).isEmpty();
+            assertThat(packageDirectory.resolve("Class2.java")).doesNotExist();
+            assertThat(targetDirectory.resolve("Class2.java")).hasContent("package package2;\n\npublic class Class2 {\n}");
+            assertThat(class3).hasContent("package package2;\n\nclass Class3 extends package2.Class2 {\n}");
+        }
+    }
+
+    @Test
+    void watch_notifies_listener() throws Exception {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        write(packageDirectory.resolve("Class1.java"), "package package1;\n\npublic class Class1 {\n}".getBytes());
+        List<Path> outputs = new CopyOnWriteArrayList<>();
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setListener(new RelocationListener() {
+            @Override public void fileModified(Path file, Path output) {
+                outputs.add(output);
+            }
+        });
+
+        try (RelocationWatcher watcher = relocator.watch(20)) {
+            assertThat(watcher.getFailures()).isEmpty();
+            assertThat(outputs).containsExactly(sourceDirectory.resolve("package2").resolve("Class1.java"));
+        }
+    }
+
+    @Test
+    void watch_relocates_during_a_steady_stream_of_events() throws Exception {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        Path buildDirectory = createDirectories(sourceDirectory.resolve("build"));
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+
+        try (RelocationWatcher watcher = relocator.watch(100, 300)) {
+            write(packageDirectory.resolve("Class1.java"), "package package1;\n\npublic class Class1 {\n}".getBytes());
+            Path target = sourceDirectory.resolve("package2").resolve("Class1.java");
+            // events keep coming faster than the debounce delay
+            for (int i = 0; (i < 100) && !exists(target); i++) {
+                write(buildDirectory.resolve("output.txt"), Integer.toString(i).getBytes());
+                Thread.sleep(20);
+            }
+
+            assertThat(watcher.getFailures()).isEmpty();
+            assertThat(target).exists();
+        }
+    }
+
+    @Test
+    void relocate_with_journal_resumes_cancelled_run() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        for (int i = 1; i <= 3; i++) {
+            write(packageDirectory.resolve("Class" + i + ".java"),
+                  ("package package1;\n\npublic class Class" + i + " {\n}").getBytes());
+        }
+        Path journalFile = sourceDirectory.resolveSibling(sourceDirectory.getFileName() + ".journal");
+        List<Path> modifiedFiles = new ArrayList<>();
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setJournal(journalFile);
+        relocator.setListener(new RelocationListener() {
+            @Override public void fileModified(Path file, Path output) {
+                modifiedFiles.add(output);
+                relocator.cancel();
+            }
+        });
+
+        Throwable thrown = catchThrowable(relocator::relocate);
+
+        assertThat(thrown).isInstanceOf(CancellationException.class);
+        assertThat(modifiedFiles).hasSize(1);
+        assertThat(modifiedFiles.get(0)).exists();
+        assertThat(journalFile).exists();
+        List<Path> scannedFiles = new ArrayList<>();
+        Relocator resumedRelocator = new Relocator(sourceDirectory);
+        resumedRelocator.addRelocation(new PackageRelocation("package1", "package2"));
+        resumedRelocator.setJournal(journalFile);
+        resumedRelocator.setListener(new RelocationListener() {
+            @Override public void fileScanned(Path file) {
+                scannedFiles.add(file);
+            }
+        });
+
+        resumedRelocator.relocate();
+
+        assertThat(scannedFiles).hasSize(2).doesNotContain(modifiedFiles.get(0));
+        for (int i = 1; i <= 3; i++) {
+            assertThat(sourceDirectory.resolve("package2").resolve("Class" + i + ".java"))
+                .hasContent("package package2;\n\npublic class Class" + i + " {\n}");
+        }
+        assertThat(journalFile).doesNotExist();
+    }
+
+    @Test
+    void cancel_applies_to_a_single_run() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        write(createDirectories(sourceDirectory.resolve("package1")).resolve("Class1.java"),
+              "package package1;\n\npublic class Class1 {\n}".getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+
+        relocator.cancel();
+
+        assertThat(catchThrowable(relocator::analyze)).isInstanceOf(CancellationException.class);
+        assertThat(relocator.analyze().getChanges()).hasSize(1);
+    }
+
+    @Test
+    void relocate_with_reference_index_parses_only_affected_files() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path class1 = write(createDirectories(sourceDirectory.resolve("package1")).resolve("Class1.java"),
+                            "package package1;\n\npublic class Class1 {\n}".getBytes());
+        Path class3 = write(createDirectories(sourceDirectory.resolve("package3")).resolve("Class3.java"),
+                            "package package3;\n\npublic class Class3 extends package1.Class1 {\n}".getBytes());
+        Path indexFile = sourceDirectory.resolveSibling(sourceDirectory.getFileName() + ".index");
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package3", "package4"));
+        relocator.setOutputDirectory(createTempDirectory(""));
+        relocator.setReferenceIndex(indexFile);
+        relocator.relocate();
+        List<Path> scannedFiles = new ArrayList<>();
+        Path outputDirectory = createTempDirectory("");
+        relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package3", "package5"));
+        relocator.setOutputDirectory(outputDirectory);
+        relocator.setReferenceIndex(indexFile);
+        relocator.setListener(new RelocationListener() {
+            @Override public void fileScanned(Path file) {
+                scannedFiles.add(file);
+            }
+        });
+
+        relocator.relocate();
+
+        assertThat(scannedFiles).containsExactly(class3);
+        assertThat(outputDirectory.resolve("package1").resolve("Class1.java")).hasSameContentAs(class1);
+        assertThat(outputDirectory.resolve("package5").resolve("Class3.java"))
+            .hasContent("package package5;\n\npublic class Class3 extends package1.Class1 {\n}");
+    }
+
+    @Test
+    void relocate_with_reference_index_indexes_files_not_parsed() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path class1 = write(createDirectories(sourceDirectory.resolve("package1")).resolve("Class1.java"),
+                            "package package1;\n\npublic class Class1 {\n}".getBytes());
+        Path class3 = write(createDirectories(sourceDirectory.resolve("package3")).resolve("Class3.java"),
+                            "package package3;\n\npublic class Class3 {\n}".getBytes());
+        Path indexFile = sourceDirectory.resolveSibling(sourceDirectory.getFileName() + ".index");
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package3", "package4"));
+        relocator.setOutputDirectory(createTempDirectory(""));
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+        relocator.setPrefilterEnabled(true);
+        relocator.setReferenceIndex(indexFile);
+
+        relocator.relocate();
+
+        ReferenceIndex index = ReferenceIndex.load(indexFile, singletonList(new SourceRoot(sourceDirectory, null)),
+                                                   new RelocationIndex(singletonList(
+                                                       new PackageRelocation("package2", "package5"))), false);
+        assertThat(index.isUnaffected(class1)).isTrue();
+        assertThat(index.isUnaffected(class3)).isTrue();
+    }
+
+    @Test
+    void relocate_with_charset() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        String source = "package package1;\n\n/** caf\u00e9 */\npublic class Class1 {\n}";
+        write(packageDirectory.resolve("Class1.java"), source.getBytes(ISO_8859_1));
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setCharset(ISO_8859_1);
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        relocator.relocate();
+
+        assertThat(readAllBytes(sourceDirectory.resolve("package2").resolve("Class1.java")))
+            .isEqualTo(source.replace("package1", "package2").getBytes(ISO_8859_1));
+    }
+
+    @Test
+    void relocate_with_charset_not_ascii_compatible() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        String source = "package package1;\n\npublic class Class1 {\n}";
+        write(packageDirectory.resolve("Class1.java"), source.getBytes(UTF_16));
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setCharset(UTF_16);
+        relocator.setPrefilterEnabled(true);
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        relocator.relocate();
+
+        assertThat(new String(readAllBytes(sourceDirectory.resolve("package2").resolve("Class1.java")), UTF_16))
+            .isEqualTo(source.replace("package1", "package2"));
+    }
+
+    @Test
+    void relocate_with_parser_configuration() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        Path file = write(packageDirectory.resolve("Class1.java"),
+                          "package package1;\n\npublic class Class1 {\n    java.util.List<String> list;\n}".getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setParserConfiguration(new ParserConfiguration().setLanguageLevel(LanguageLevel.JAVA_1_4));
+
+        Throwable thrown = catchThrowable(relocator::relocate);
+
+        assertThat(((RelocatorException) thrown).getFailures()).containsOnlyKeys(file);
+        assertThat(((RelocatorException) thrown).getFailures().get(file)).isInstanceOf(ParseProblemException.class);
+    }
+
+    @Test
+    void relocate_preserves_formatting_with_tab_size() throws IOException {
+        Path sourceDirectory = createTempDirectory("");
+        Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+        String source = "package package1;\n\npublic class Class1 {\n\tvoid m() { package1.Class2.staticMethod(); }\n}";
+        write(packageDirectory.resolve("Class1.java"), source.getBytes());
+        Relocator relocator = new Relocator(sourceDirectory);
+        relocator.addRelocation(new PackageRelocation("package1", "package2"));
+        relocator.setParserConfiguration(new ParserConfiguration().setTabSize(4));
+        relocator.setOutputMode(OutputMode.PRESERVE_FORMATTING);
+
+        relocator.relocate();
+
+        assertThat(sourceDirectory.resolve("package2").resolve("Class1.java"))
+            .hasContent(source.replace("package1", "package2"));
+    }
+
+    @Test
+    void relocate_without_stored_tokens() throws IOException {
+        for (OutputMode outputMode : OutputMode.values()) {
+            Path sourceDirectory = createTempDirectory("");
+            Path packageDirectory = createDirectories(sourceDirectory.resolve("package1"));
+            String source = "package package1;\n\npublic class Class1 {\n}";
+            write(packageDirectory.resolve("Class1.java"), source.getBytes());
+            Relocator relocator = new Relocator(sourceDirectory);
+            relocator.addRelocation(new PackageRelocation("package1", "package2"));
+            relocator.setParserConfiguration(new ParserConfiguration().setStoreTokens(false));
+            relocator.setOutputMode(outputMode);
+
+            relocator.relocate();
+
+            assertThat(sourceDirectory.resolve("package2").resolve("Class1.java"))
+                .as(outputMode.name()).hasContent(source.replace("package1", "package2"));
+        }
+    }
+
+    private static String read(ZipFile zip, String name) throws IOException {
+        try (InputStream input = zip.getInputStream(zip.getEntry(name))) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int count; (count = input.read(buffer)) >= 0; ) {
+                content.write(buffer, 0, count);
+            }
+            return content.toString("UTF-8");
+        }
+    }
+
     @Test
     void relocate_does_not_modify_file() throws IOException, InterruptedException {
         relocate(false);
@@ -69,7 +884,7 @@ class RelocatorTest {
         Path file = createClassFile(sourceDirectory, "Class1", expectedFileContent);
         FileTime initialFileTime = getLastModifiedTime(file);
         sleep(1000); // wait next second
-        when(fileCollector.collectFiles(sourceDirectory)).thenReturn(singletonList(file));
+        collectFiles(sourceDirectory, singletonList(file));
         if (modifyFile) {
             when(fileRelocator.relocate(argThat(eqCompilationUnitFor(file))))
                 .then(modifyCompilationUnit("modification", expectedFileContent));
@@ -89,6 +904,14 @@ class RelocatorTest {
         }
     }
 
+    private void collectFiles(Path sourceDirectory, List<Path> files) throws IOException {
+        doAnswer(invocationOnMock -> {
+            Consumer<Path> consumer = invocationOnMock.getArgument(1);
+            files.forEach(consumer);
+            return null;
+        }).when(fileCollector).collectFiles(eq(sourceDirectory), any());
+    }
+
     private Answer<Boolean> modifyCompilationUnitPackage(StringBuilder fileContent,
                                                          String targetPackage) {
         return invocationOnMock -> {
@@ -101,6 +924,14 @@ class RelocatorTest {
         };
     }
 
+    private Answer<Boolean> modifyCompilationUnit(String modification) {
+        return invocationOnMock -> {
+            CompilationUnit compilationUnit = invocationOnMock.getArgument(0);
+            compilationUnit.addOrphanComment(new LineComment(modification));
+            return TRUE;
+        };
+    }
+
     private Answer<Boolean> modifyCompilationUnit(String modification, StringBuilder fileContent) {
         return invocationOnMock -> {
             CompilationUnit compilationUnit = invocationOnMock.getArgument(0);
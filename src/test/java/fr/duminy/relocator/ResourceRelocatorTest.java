@@ -0,0 +1,84 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.Paths.get;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResourceRelocatorTest {
+    private final ResourceRelocator relocator = new ResourceRelocator(new RelocationIndex(asList(
+        new ClassRelocation("package1", "Class3", "package3"),
+        new PackageRelocation("package1", "package2.sub"))));
+
+    @DisplayName("relocates qualified names in text")
+    @Test void qualified_names() {
+        assertThat(relocate("config.properties", "factory=package1.Class1\nother = package1.impl.Class2\n"))
+            .isEqualTo("factory=package2.sub.Class1\nother = package2.sub.impl.Class2\n");
+    }
+
+    @DisplayName("relocates resource paths")
+    @Test void resource_paths() {
+        assertThat(relocate("context.xml", "<import resource=\"classpath:/package1/context.xml\"/>"))
+            .isEqualTo("<import resource=\"classpath:/package2/sub/context.xml\"/>");
+    }
+
+    @DisplayName("relocates classes of a ClassRelocation")
+    @Test void class_relocation() {
+        assertThat(relocate("context.xml", "<bean class=\"package1.Class3\"/><bean class=\"package1.Class1\"/>"))
+            .isEqualTo("<bean class=\"package3.Class3\"/><bean class=\"package2.sub.Class1\"/>");
+    }
+
+    @DisplayName("doesn't relocate names in the middle of a qualified name")
+    @Test void other_names() {
+        assertThat(relocate("config.properties", "a=org.package1.Class1\nb=package10.Class1\nc.package1=x"))
+            .isNull();
+    }
+
+    @DisplayName("relocates only package names of module directives")
+    @Test void module_info() {
+        String source = "module package1 {\n"
+                        + "    requires package1.api;\n"
+                        + "    exports package1.api to package1.client;\n"
+                        + "    uses package1.Service;\n"
+                        + "    provides package1.Service with package1.impl.ServiceImpl;\n"
+                        + "}\n";
+
+        assertThat(relocate(ResourceRelocator.MODULE_INFO, source))
+            .isEqualTo("module package1 {\n"
+                       + "    requires package1.api;\n"
+                       + "    exports package2.sub.api to package1.client;\n"
+                       + "    uses package2.sub.Service;\n"
+                       + "    provides package2.sub.Service with package2.sub.impl.ServiceImpl;\n"
+                       + "}\n");
+    }
+
+    @DisplayName("records edit positions")
+    @Test void edits() {
+        List<TextEdit> edits = new ArrayList<>();
+
+        relocator.relocate(get("config.properties"), "a=1\nb=package1.Class1", edits);
+
+        assertThat(edits).hasSize(1);
+        assertThat(edits.get(0).getRange().begin.line).isEqualTo(2);
+        assertThat(edits.get(0).getRange().begin.column).isEqualTo(3);
+        assertThat(edits.get(0).getReplacement()).isEqualTo("package2.sub");
+    }
+
+    @DisplayName("renames service files")
+    @Test void service_file_name() {
+        Path serviceFile = get("META-INF", "services", "package1.Service");
+
+        assertThat(relocator.relocateFileName(serviceFile)).isEqualTo("package2.sub.Service");
+        assertThat(relocator.relocateFileName(get("package1.Service"))).isEqualTo("package1.Service");
+    }
+
+    private String relocate(String fileName, String text) {
+        return relocator.relocate(get(fileName), text, null);
+    }
+}
@@ -0,0 +1,87 @@
+package fr.duminy.relocator;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.Range;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SourceHeaderTest {
+    @DisplayName("tokenizes package and import declarations")
+    @Test void declarations() {
+        String source = "\uFEFF/* license */\r\npackage package1 . sub;\n\n"
+                        + "import package1.Class1;\nimport static package1 .Class1.method;;\nimport package2.*;\n"
+                        + "// comment\n@Deprecated\npublic class Class2 {\n}";
+
+        SourceHeader header = SourceHeader.parse(source);
+
+        assertThat(header.getPackageName()).isEqualTo("package1.sub");
+        assertThat(names(header)).containsExactly("package1.sub", "package1.Class1", "package1.Class1.method",
+                                                  "package2");
+        assertThat(source.substring(header.getEnd())).isEqualTo("@Deprecated\npublic class Class2 {\n}");
+        assertThat(header.getRange(source.indexOf("package1 ."), source.indexOf(";")))
+            .isEqualTo(new Range(new Position(2, 9), new Position(2, 22)));
+    }
+
+    @DisplayName("tokenizes files without package declaration")
+    @Test void default_package() {
+        SourceHeader header = SourceHeader.parse("import package1.Class1;\nclass Class2 {}");
+
+        assertThat(header.getPackageName()).isNull();
+        assertThat(names(header)).containsExactly("package1.Class1");
+    }
+
+    @DisplayName("ends the header at package annotations")
+    @Test void package_annotations() {
+        String source = "@Deprecated\npackage package1;";
+
+        SourceHeader header = SourceHeader.parse(source);
+
+        assertThat(header.getPackageName()).isNull();
+        assertThat(header.getEnd()).isZero();
+    }
+
+    @DisplayName("doesn't tokenize invalid declarations")
+    @Test void invalid_declarations() {
+        assertThat(SourceHeader.parse("package package1")).isNull();
+        assertThat(SourceHeader.parse("package package1;\nimport package1.;")).isNull();
+        assertThat(SourceHeader.parse("package package1;\nimport package1.Class1 class Class2 {}")).isNull();
+        assertThat(SourceHeader.parse("package package1;\n/* unterminated")).isNull();
+    }
+
+    @DisplayName("doesn't tokenize unicode escapes")
+    @Test void unicode_escapes() {
+        assertThat(SourceHeader.parse("package package1;\n\\u0069mport package1.Class1;")).isNull();
+        assertThat(SourceHeader.parse("// \\u000a import package1.Class1;\npackage package1;")).isNull();
+    }
+
+    @DisplayName("scans the qualified names of the whole file")
+    @Test void references() {
+        String[] references = SourceHeader.scanReferences(
+            "package package1.sub;\n\n"
+            + "import package2.Class2;\n"
+            + "import package3.*;\n\n"
+            + "// matches \\d.x\n"
+            + "@package4.Annotation4\n"
+            + "public class Class1 {\n"
+            + "    private package5.Class5 field = package6.Class6.FIELD;\n"
+            + "    private String string = field.toString() + \"package7.\\\"Class7\" + '\\'';\n"
+            + "}\n");
+
+        assertThat(references).containsExactlyInAnyOrder("package1.sub", "package2.Class2", "package3", "package4",
+                                                          "package5", "package6.Class6", "field");
+        assertThat(SourceHeader.scanReferences("class Class1 { String s = \"\\u0022; }")).isNull();
+    }
+
+    private static List<String> names(SourceHeader header) {
+        List<String> names = new ArrayList<>();
+        for (SourceHeader.QualifiedName name : header.getNames()) {
+            names.add(name.toString());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,68 @@
+package fr.duminy.relocator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ZipWriterTest {
+    @DisplayName("flags the names encoded in UTF-8")
+    @Test void utf8_names() throws IOException {
+        Path directory = createTempDirectory("");
+        Path output = directory.resolve("output.zip");
+        ZipEntryRecord template = readEntry(directory);
+
+        try (ZipWriter writer = new ZipWriter(output)) {
+            writer.write(template, "package2/Class1.java", "ascii".getBytes(UTF_8));
+            writer.write(template, "package2/Cl\u00e0ss2.java", "utf-8".getBytes(UTF_8));
+            writer.finish();
+        }
+
+        try (ZipFile zip = new ZipFile(output.toFile())) {
+            assertThat(zip.stream().map(ZipEntry::getName))
+                .containsExactly("package2/Class1.java", "package2/Cl\u00e0ss2.java");
+        }
+        try (ZipReader reader = new ZipReader(output)) {
+            assertThat(reader.getEntries()).extracting(entry -> entry.flags & ZipEntryRecord.UTF8_FLAG)
+                .containsExactly(0, ZipEntryRecord.UTF8_FLAG);
+        }
+    }
+
+    @DisplayName("doesn't replace the archive unless finished")
+    @Test void not_finished() throws IOException {
+        Path directory = createTempDirectory("");
+        Path output = write(directory.resolve("output.zip"), "previous".getBytes(UTF_8));
+        ZipEntryRecord template = readEntry(directory);
+
+        try (ZipWriter writer = new ZipWriter(output)) {
+            writer.write(template, "package2/Class1.java", "content".getBytes(UTF_8));
+        }
+
+        assertThat(output).hasContent("previous");
+        try (Stream<Path> files = list(directory)) {
+            assertThat(files).containsExactlyInAnyOrder(output, directory.resolve("input.zip"));
+        }
+    }
+
+    private static ZipEntryRecord readEntry(Path directory) throws IOException {
+        Path input = directory.resolve("input.zip");
+        // without the UTF-8 flag that ZipOutputStream sets for its default charset
+        try (ZipOutputStream zip = new ZipOutputStream(newOutputStream(input), ISO_8859_1)) {
+            zip.putNextEntry(new ZipEntry("package1/Class1.java"));
+            zip.write("content".getBytes(UTF_8));
+        }
+        try (ZipReader reader = new ZipReader(input)) {
+            return reader.getEntries().iterator().next();
+        }
+    }
+}